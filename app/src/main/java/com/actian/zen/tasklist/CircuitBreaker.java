@@ -0,0 +1,108 @@
+/*
+ * Copyright 2017 Actian Corporation
+ */
+package com.actian.zen.tasklist;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * The CircuitBreaker class stops requests to an unreachable database
+ * server.  After failureThreshold consecutive connection failures the
+ * breaker opens and requests are refused at once for openDurationMs
+ * instead of each waiting for the connection timeout.  Then a single probe
+ * request is let through (half-open): if it succeeds the breaker closes,
+ * if it fails the breaker opens again.
+ */
+class CircuitBreaker {
+    private static final String TAG = "CircuitBreaker";
+
+    enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private final int mFailureThreshold;
+    private final long mOpenDurationMs;
+    private State mState = State.CLOSED;
+    private int mFailures;
+    private long mOpenedAt;
+
+    CircuitBreaker(int failureThreshold, long openDurationMs) {
+        mFailureThreshold = failureThreshold;
+        mOpenDurationMs = openDurationMs;
+    }
+
+    // Whether a request may go to the server now.  While half-open only
+    // the one probe request is allowed.
+    synchronized boolean allowRequest() {
+        switch (mState) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (SystemClock.elapsedRealtime() - mOpenedAt >= mOpenDurationMs) {
+                    Log.v(TAG, "Half-open: probing server");
+                    mState = State.HALF_OPEN;
+                    return true;
+                }
+                return false;
+            default:
+                return false;
+        }
+    }
+
+    // Whether allowRequest would let a request through now.  Unlike
+    // allowRequest this does not start a probe.
+    synchronized boolean isAvailable() {
+        return mState == State.CLOSED
+                || mState == State.OPEN
+                   && SystemClock.elapsedRealtime() - mOpenedAt >= mOpenDurationMs;
+    }
+
+    synchronized void recordSuccess() {
+        if (mState != State.CLOSED)
+            Log.v(TAG, "Closed: server reachable");
+        mState = State.CLOSED;
+        mFailures = 0;
+    }
+
+    // Only connection-level failures count; other errors mean the server
+    // answered.
+    synchronized void recordFailure(DbException ex) {
+        if (!(ex instanceof DbException.Connection)) {
+            recordSuccess();
+            return;
+        }
+        mFailures++;
+        if (mState == State.HALF_OPEN || mFailures >= mFailureThreshold) {
+            if (mState != State.OPEN)
+                Log.w(TAG, String.format("Open after %d connection failures", mFailures));
+            mState = State.OPEN;
+            mOpenedAt = SystemClock.elapsedRealtime();
+        }
+    }
+
+    // Open at once, whatever the failure count, for a server found to be
+    // of no use at all; it is probed again after openDurationMs.
+    synchronized void trip() {
+        if (mState != State.OPEN)
+            Log.w(TAG, "Open: server unusable");
+        mState = State.OPEN;
+        mOpenedAt = SystemClock.elapsedRealtime();
+    }
+
+    // The request let through ended without telling whether the server is
+    // reachable, for example by a bug or a bad argument.  A half-open
+    // breaker goes back to open with its wait already over, so that the
+    // next request becomes the probe instead of the breaker waiting
+    // forever for this one.
+    synchronized void recordNoOutcome() {
+        if (mState == State.HALF_OPEN)
+            mState = State.OPEN;
+    }
+
+    synchronized State getState() {
+        return mState;
+    }
+
+    long getOpenDurationMs() {
+        return mOpenDurationMs;
+    }
+}
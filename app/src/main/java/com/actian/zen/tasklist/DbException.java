@@ -0,0 +1,61 @@
+/*
+ * Copyright 2017 Actian Corporation
+ */
+package com.actian.zen.tasklist;
+
+import com.actian.zen.db.Btrieve;
+
+/**
+ * The DbException class is thrown for a failed Zen database operation and
+ * carries the Btrieve status code, so callers can tell failures apart
+ * without matching on the message.  Use ZenDBHelper.newDbException to get
+ * the subclass matching a status code; the codes of each subclass are
+ * listed there.
+ */
+public class DbException extends RuntimeException {
+    private final Btrieve.StatusCode mStatus;
+
+    public DbException(Btrieve.StatusCode status, String message) {
+        super(message);
+        mStatus = status;
+    }
+
+    public Btrieve.StatusCode getStatus() {
+        return mStatus;
+    }
+
+    /** The record or key asked for does not exist. */
+    public static class NotFound extends DbException {
+        public NotFound(Btrieve.StatusCode status, String message) {
+            super(status, message);
+        }
+    }
+
+    /** The record or file is locked or in use by another client. */
+    public static class Locked extends DbException {
+        public Locked(Btrieve.StatusCode status, String message) {
+            super(status, message);
+        }
+    }
+
+    /** The record was changed by another writer since it was read. */
+    public static class Conflict extends DbException {
+        public Conflict(Btrieve.StatusCode status, String message) {
+            super(status, message);
+        }
+    }
+
+    /** The connection to the database engine failed or was lost. */
+    public static class Connection extends DbException {
+        public Connection(Btrieve.StatusCode status, String message) {
+            super(status, message);
+        }
+    }
+
+    /** The server is known to be unreachable and was not contacted. */
+    public static class Unavailable extends Connection {
+        public Unavailable(Btrieve.StatusCode status, String message) {
+            super(status, message);
+        }
+    }
+}
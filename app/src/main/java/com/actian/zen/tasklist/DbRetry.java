@@ -0,0 +1,162 @@
+/*
+ * Copyright 2017 Actian Corporation
+ */
+package com.actian.zen.tasklist;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.actian.zen.db.Btrieve;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The DbRetry class runs TaskCursor operations with retries.  A failure
+ * is retried when its status code is transient: a lock conflict or busy
+ * file, or a lost connection, after which a fresh cursor is opened.
+ * Permanent failures are thrown at once.  Retries back off exponentially
+ * with random jitter and stop when the attempt limit or the time budget
+ * is used up, at which point the last failure is thrown.  An optional
+ * CircuitBreaker sees every attempt; while it is open, operations fail at
+ * once with DbException.Unavailable.
+ */
+class DbRetry {
+    private static final String TAG = "DbRetry";
+
+    // A unit of work on a cursor.  The cursor is opened and closed by
+    // DbRetry; each attempt gets a new one.
+    interface Operation<T> {
+        T run(TaskCursor cursor);
+    }
+
+    static class Policy {
+        final int maxAttempts;
+        final long initialDelayMs;
+        final long maxDelayMs;
+        final long budgetMs;
+
+        Policy(int maxAttempts, long initialDelayMs, long maxDelayMs, long budgetMs) {
+            this.maxAttempts = maxAttempts;
+            this.initialDelayMs = initialDelayMs;
+            this.maxDelayMs = maxDelayMs;
+            this.budgetMs = budgetMs;
+        }
+    }
+
+    static final Policy DEFAULT_POLICY = new Policy(5, 50, 2000, 10000);
+
+    private final TaskTable mTable;
+    private final Policy mPolicy;
+    private final CircuitBreaker mBreaker;
+    private final Random mRandom = new Random();
+    private final AtomicLong mRetries = new AtomicLong();
+    private final AtomicLong mGiveUps = new AtomicLong();
+
+    DbRetry(TaskTable table, Policy policy) {
+        this(table, policy, null);
+    }
+
+    DbRetry(TaskTable table, Policy policy, CircuitBreaker breaker) {
+        mTable = table;
+        mPolicy = policy;
+        mBreaker = breaker;
+    }
+
+    // Run op, retrying transient failures.  idempotent must be false for
+    // operations such as insert whose effect may already have happened
+    // when the connection dropped; those are not retried after a
+    // connection failure.
+    <T> T execute(Operation<T> op, boolean idempotent) {
+        long start = SystemClock.elapsedRealtime();
+        long delay = mPolicy.initialDelayMs;
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return runOnce(op);
+            } catch (DbException ex) {
+                long elapsed = SystemClock.elapsedRealtime() - start;
+                if (!isRetryable(ex, idempotent))
+                    throw ex;
+                // Full jitter: sleep a random time up to the current delay.
+                long sleep = (long) (mRandom.nextDouble() * delay);
+                if (attempt >= mPolicy.maxAttempts || elapsed + sleep > mPolicy.budgetMs) {
+                    mGiveUps.incrementAndGet();
+                    Log.w(TAG, String.format("Giving up after %d attempts, %d ms", attempt, elapsed), ex);
+                    throw ex;
+                }
+                mRetries.incrementAndGet();
+                Log.v(TAG, String.format("Retry %d in %d ms: %s", attempt, sleep, ex.getMessage()));
+                try {
+                    Thread.sleep(sleep);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw ex;
+                }
+                delay = Math.min(delay * 2, mPolicy.maxDelayMs);
+            }
+        }
+    }
+
+    private <T> T runOnce(Operation<T> op) {
+        if (mBreaker == null)
+            return runCursor(op);
+        if (!mBreaker.allowRequest()) {
+            throw new DbException.Unavailable(Btrieve.StatusCode.STATUS_CODE_COMMUNICATIONS_ERROR,
+                                              "Database server unavailable");
+        }
+        boolean recorded = false;
+        try {
+            T result = runCursor(op);
+            mBreaker.recordSuccess();
+            recorded = true;
+            return result;
+        } catch (DbException ex) {
+            mBreaker.recordFailure(ex);
+            recorded = true;
+            throw ex;
+        } finally {
+            // Any other exception must not leave a probe outstanding.
+            if (!recorded)
+                mBreaker.recordNoOutcome();
+        }
+    }
+
+    private <T> T runCursor(Operation<T> op) {
+        // Opening the cursor is part of the attempt, so a connection lost
+        // between attempts is re-established by the next FileOpen.
+        TaskCursor cursor = new TaskCursor(mTable);
+        try {
+            return op.run(cursor);
+        } finally {
+            try {
+                cursor.close();
+            } catch (RuntimeException ex) {
+                // Closing a handle on a dead connection may fail too.
+                Log.v(TAG, "Close after failure: " + ex.getMessage());
+            }
+        }
+    }
+
+    static boolean isTransient(DbException ex) {
+        return ex instanceof DbException.Locked || ex instanceof DbException.Connection;
+    }
+
+    // Whether a failure of an operation, idempotent or not, is retried.
+    static boolean isRetryable(DbException ex, boolean idempotent) {
+        if (ex instanceof DbException.Unavailable)
+            return false;
+        if (ex instanceof DbException.Connection)
+            return idempotent;
+        return isTransient(ex);
+    }
+
+    // Number of attempts that were retried.
+    long getRetryCount() {
+        return mRetries.get();
+    }
+
+    // Number of operations that failed after exhausting their retries.
+    long getGiveUpCount() {
+        return mGiveUps.get();
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2017 Actian Corporation
+ */
+package com.actian.zen.tasklist;
+
+import android.util.Log;
+
+import com.actian.zen.db.BtrieveBulkCreatePayload;
+import com.actian.zen.db.BtrieveBulkCreateResult;
+import com.actian.zen.db.BtrieveBulkRetrieveAttributes;
+import com.actian.zen.db.BtrieveBulkRetrieveResult;
+import com.actian.zen.db.BtrieveClient;
+import com.actian.zen.db.BtrieveFile;
+import com.actian.zen.db.BtrieveFileAttributes;
+import com.actian.zen.db.BtrieveFileInformation;
+import com.actian.zen.db.BtrieveFilter;
+import com.actian.zen.db.BtrieveIndexAttributes;
+import com.actian.zen.db.BtrieveKeySegment;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * The NativeResources class frees the native memory behind Btrieve objects
+ * deterministically instead of waiting for their finalizers.  An instance
+ * is a scope: objects added to it are deleted, in reverse order, when the
+ * scope is closed.  When leak tracking is enabled every tracked object
+ * remembers where it was allocated so that objects which are never deleted
+ * can be reported.
+ */
+final class NativeResources implements AutoCloseable {
+    private static final String TAG = "NativeResources";
+
+    // Enable in debug builds only; tracking records a stack trace per object.
+    static volatile boolean sTrackLeaks = false;
+    private static final Map<Object, Throwable> sLive = new IdentityHashMap<>();
+
+    private final ArrayList<Object> mOwned = new ArrayList<>();
+
+    // Take ownership of a Btrieve object; it is deleted when this scope closes.
+    <T> T add(T obj) {
+        mOwned.add(track(obj));
+        return obj;
+    }
+
+    @Override
+    public void close() {
+        for (int i = mOwned.size() - 1; i >= 0; i--) {
+            delete(mOwned.get(i));
+        }
+        mOwned.clear();
+    }
+
+    // Register a newly allocated Btrieve object with the leak tracker.
+    static <T> T track(T obj) {
+        if (sTrackLeaks) {
+            synchronized (sLive) {
+                sLive.put(obj, new Throwable(obj.getClass().getSimpleName() + " allocated here"));
+            }
+        }
+        return obj;
+    }
+
+    // Free the native memory of a Btrieve object now.  Null is ignored.
+    static void delete(Object obj) {
+        if (obj == null)
+            return;
+        synchronized (sLive) {
+            sLive.remove(obj);
+        }
+        if (obj instanceof BtrieveFile) {
+            ((BtrieveFile) obj).delete();
+        } else if (obj instanceof BtrieveClient) {
+            ((BtrieveClient) obj).delete();
+        } else if (obj instanceof BtrieveFileAttributes) {
+            ((BtrieveFileAttributes) obj).delete();
+        } else if (obj instanceof BtrieveIndexAttributes) {
+            ((BtrieveIndexAttributes) obj).delete();
+        } else if (obj instanceof BtrieveKeySegment) {
+            ((BtrieveKeySegment) obj).delete();
+        } else if (obj instanceof BtrieveFileInformation) {
+            ((BtrieveFileInformation) obj).delete();
+        } else if (obj instanceof BtrieveBulkRetrieveAttributes) {
+            ((BtrieveBulkRetrieveAttributes) obj).delete();
+        } else if (obj instanceof BtrieveBulkRetrieveResult) {
+            ((BtrieveBulkRetrieveResult) obj).delete();
+        } else if (obj instanceof BtrieveBulkCreatePayload) {
+            ((BtrieveBulkCreatePayload) obj).delete();
+        } else if (obj instanceof BtrieveBulkCreateResult) {
+            ((BtrieveBulkCreateResult) obj).delete();
+        } else if (obj instanceof BtrieveFilter) {
+            ((BtrieveFilter) obj).delete();
+        } else {
+            throw new IllegalArgumentException("Not a Btrieve object: " + obj.getClass().getName());
+        }
+    }
+
+    // Number of tracked objects that have not been deleted yet.
+    static int liveCount() {
+        synchronized (sLive) {
+            return sLive.size();
+        }
+    }
+
+    // Log every tracked object that has not been deleted, with the stack
+    // trace of its allocation.  Returns the number of objects reported.
+    static int reportLeaks() {
+        synchronized (sLive) {
+            for (Throwable allocation : sLive.values()) {
+                Log.w(TAG, "Native handle not deleted", allocation);
+            }
+            return sLive.size();
+        }
+    }
+}
@@ -0,0 +1,296 @@
+/*
+ * Copyright 2017 Actian Corporation
+ */
+package com.actian.zen.tasklist;
+
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.actian.zen.db.Btrieve;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The ReplicaRouter class spreads work over several servers holding copies
+ * of the task table.  The first endpoint is the primary and takes all
+ * writes.  Reads go to the endpoint with the lowest observed latency; if
+ * it has not answered within a multiple of its usual latency the read is
+ * hedged, sent to the next best endpoint as well, and the first answer
+ * wins.  Each endpoint has its own CircuitBreaker, so one that keeps
+ * failing drops out of the rotation until a probe succeeds.
+ *
+ * Reads may be served by a replica that lags the primary.  Callers that
+ * need the latest data should use readPrimary.
+ *
+ * Endpoints are opened on first use, not by the constructor, so an
+ * unreachable server only takes itself out of the rotation.  The primary
+ * table is created or upgraded as needed; replica tables are only opened,
+ * never created.  An endpoint that cannot be opened is marked down by
+ * tripping its breaker and opened again once a probe is let through.
+ *
+ * With a single endpoint, or when every usable endpoint is busy, a read
+ * runs on the best one anyway, queued behind the reads already there.
+ */
+class ReplicaRouter {
+    private static final String TAG = "ReplicaRouter";
+    // Weight of the newest sample in the latency average.
+    private static final double LATENCY_WEIGHT = 0.2;
+    // A read is hedged after this many times the endpoint's average
+    // latency, but never sooner than MIN_HEDGE_MS.
+    private static final int HEDGE_FACTOR = 3;
+    private static final long MIN_HEDGE_MS = 50;
+    // Hedged reads are not retried on the same endpoint.
+    private static final DbRetry.Policy READ_POLICY = new DbRetry.Policy(1, 0, 0, 0);
+
+    private static class Endpoint {
+        final String uri;
+        final boolean primary;
+        final CircuitBreaker breaker;
+        // Set by open, under the endpoint's lock.
+        TaskTable table;
+        DbRetry reads;
+        // Only for the primary.
+        DbRetry writes;
+        // Average latency of successful reads, 0 until the first one.
+        double latencyMs;
+        // Number of reads running, so that an endpoint that is slow to
+        // answer is not handed further reads meanwhile.
+        int busy;
+
+        Endpoint(String uri, boolean primary, CircuitBreaker breaker) {
+            this.uri = uri;
+            this.primary = primary;
+            this.breaker = breaker;
+        }
+    }
+
+    private final ArrayList<Endpoint> mEndpoints = new ArrayList<>();
+    private final SharedPreferences mPrefs;
+    // Every thread opens a client per endpoint, so the pool is kept to a
+    // fixed size: one thread per endpoint, since an endpoint is normally
+    // handed one read at a time.  Reads beyond that wait in its queue.
+    private final ExecutorService mReadExecutor;
+
+    // uris[0] is the primary.
+    ReplicaRouter(String[] uris, SharedPreferences prefs, int failureThreshold, long openDurationMs) {
+        mReadExecutor = Executors.newFixedThreadPool(Math.max(uris.length, 2));
+        mPrefs = prefs;
+        for (int i = 0; i < uris.length; i++) {
+            mEndpoints.add(new Endpoint(uris[i], i == 0,
+                                        new CircuitBreaker(failureThreshold, openDurationMs)));
+        }
+    }
+
+    // Retrying access to the primary, for writes and for reads that must
+    // see them.  Throws if the primary cannot be opened.
+    DbRetry primary() {
+        Endpoint primary = mEndpoints.get(0);
+        open(primary);
+        return primary.writes;
+    }
+
+    <T> T readPrimary(DbRetry.Operation<T> op) {
+        return primary().execute(op, true);
+    }
+
+    // Open endpoint's table unless already done.  A failure marks the
+    // endpoint down and is thrown.
+    private void open(Endpoint endpoint) {
+        synchronized (endpoint) {
+            if (endpoint.table != null)
+                return;
+            if (!endpoint.breaker.allowRequest()) {
+                throw new DbException.Unavailable(Btrieve.StatusCode.STATUS_CODE_COMMUNICATIONS_ERROR,
+                                                  "Database server down: " + mEndpoints.indexOf(endpoint));
+            }
+            TaskTable table = null;
+            boolean recorded = false;
+            try {
+                if (endpoint.primary) {
+                    table = new TaskTable(endpoint.uri, mPrefs);
+                } else {
+                    table = TaskTable.openExisting(endpoint.uri);
+                    new TaskCursor(table).close();
+                }
+                endpoint.breaker.recordSuccess();
+                recorded = true;
+            } catch (DbException ex) {
+                Log.w(TAG, String.format("Opening endpoint %d failed", mEndpoints.indexOf(endpoint)), ex);
+                endpoint.breaker.trip();
+                recorded = true;
+                if (table != null)
+                    table.close();
+                throw ex;
+            } finally {
+                if (!recorded)
+                    endpoint.breaker.recordNoOutcome();
+            }
+            endpoint.reads = new DbRetry(table, READ_POLICY, endpoint.breaker);
+            if (endpoint.primary)
+                endpoint.writes = new DbRetry(table, DbRetry.DEFAULT_POLICY, endpoint.breaker);
+            endpoint.table = table;
+        }
+    }
+
+    // Run a read-only op on the fastest available endpoint, hedging to a
+    // second one if the first is slow.  Throws the last failure if no
+    // endpoint answered.
+    <T> T read(final DbRetry.Operation<T> op) {
+        ExecutorCompletionService<T> completion = new ExecutorCompletionService<>(mReadExecutor);
+        ArrayList<Future<T>> running = new ArrayList<>(2);
+        ArrayList<Endpoint> tried = new ArrayList<>(2);
+        DbException failure = null;
+        try {
+            Endpoint first = acquire(tried, true);
+            if (first == null) {
+                throw new DbException.Unavailable(Btrieve.StatusCode.STATUS_CODE_COMMUNICATIONS_ERROR,
+                                                  "No database server available");
+            }
+            tried.add(first);
+            running.add(completion.submit(attempt(first, op)));
+            long hedgeMs = Math.max(MIN_HEDGE_MS, (long) (HEDGE_FACTOR * first.latencyMs));
+            int pending = 1;
+            boolean hedged = false;
+            while (pending > 0) {
+                Future<T> done = hedged ? completion.take()
+                                        : completion.poll(hedgeMs, TimeUnit.MILLISECONDS);
+                if (done == null || !hedged && isFailed(done)) {
+                    // Slow or failed; bring in another endpoint.
+                    hedged = true;
+                    Endpoint second = acquire(tried, false);
+                    if (second != null) {
+                        Log.v(TAG, String.format("Hedging read to %d", mEndpoints.indexOf(second)));
+                        tried.add(second);
+                        running.add(completion.submit(attempt(second, op)));
+                        pending++;
+                    }
+                    if (done == null)
+                        continue;
+                }
+                pending--;
+                try {
+                    return done.get();
+                } catch (ExecutionException ex) {
+                    if (!(ex.getCause() instanceof DbException))
+                        throw new RuntimeException(ex.getCause());
+                    failure = (DbException) ex.getCause();
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new DbException.Unavailable(Btrieve.StatusCode.STATUS_CODE_COMMUNICATIONS_ERROR,
+                                              "Read interrupted");
+        } finally {
+            // The losing attempt finishes in the background and releases
+            // its endpoint then.
+            for (Future<T> future : running) {
+                future.cancel(false);
+            }
+        }
+        throw failure;
+    }
+
+    private static boolean isFailed(Future<?> future) {
+        try {
+            future.get();
+            return false;
+        } catch (ExecutionException ex) {
+            return true;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private <T> Callable<T> attempt(final Endpoint endpoint, final DbRetry.Operation<T> op) {
+        return new Callable<T>() {
+            @Override
+            public T call() {
+                long start = SystemClock.elapsedRealtime();
+                try {
+                    open(endpoint);
+                    T result = endpoint.reads.execute(op, true);
+                    recordLatency(endpoint, SystemClock.elapsedRealtime() - start);
+                    return result;
+                } finally {
+                    release(endpoint);
+                }
+            }
+        };
+    }
+
+    // The idle endpoint with the lowest average latency whose breaker lets
+    // a request through, marked busy; null if there is none.  Endpoints
+    // without a latency sample yet are tried first.  If orBusy is set and
+    // all such endpoints are busy, the one with the fewest reads running
+    // is taken instead.
+    private synchronized Endpoint acquire(List<Endpoint> exclude, boolean orBusy) {
+        ArrayList<Endpoint> candidates = new ArrayList<>(mEndpoints);
+        Collections.sort(candidates, new Comparator<Endpoint>() {
+            @Override
+            public int compare(Endpoint a, Endpoint b) {
+                return Double.compare(a.latencyMs, b.latencyMs);
+            }
+        });
+        Endpoint fallback = null;
+        for (Endpoint endpoint : candidates) {
+            if (exclude.contains(endpoint) || !endpoint.breaker.isAvailable())
+                continue;
+            if (endpoint.busy == 0) {
+                endpoint.busy++;
+                return endpoint;
+            }
+            if (orBusy && (fallback == null || endpoint.busy < fallback.busy))
+                fallback = endpoint;
+        }
+        if (fallback != null)
+            fallback.busy++;
+        return fallback;
+    }
+
+    private synchronized void release(Endpoint endpoint) {
+        endpoint.busy--;
+    }
+
+    private synchronized void recordLatency(Endpoint endpoint, long ms) {
+        if (endpoint.latencyMs == 0)
+            endpoint.latencyMs = ms;
+        else
+            endpoint.latencyMs += LATENCY_WEIGHT * (ms - endpoint.latencyMs);
+    }
+
+    long getRetryCount() {
+        Endpoint primary = mEndpoints.get(0);
+        synchronized (primary) {
+            return primary.writes != null ? primary.writes.getRetryCount() : 0;
+        }
+    }
+
+    // Waits for reads still running on losing endpoints before releasing
+    // the clients.
+    void close() {
+        mReadExecutor.shutdown();
+        try {
+            mReadExecutor.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        for (Endpoint endpoint : mEndpoints) {
+            synchronized (endpoint) {
+                if (endpoint.table != null)
+                    endpoint.table.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2017 Actian Corporation
+ */
+package com.actian.zen.tasklist;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.actian.zen.db.Btrieve;
+import com.actian.zen.db.BtrieveClient;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * The TaskBackup class copies a local task table while the app keeps
+ * using it.  The file is put into continuous operation mode first: the
+ * engine then holds all changes in a separate delta file, so the data file
+ * itself stays consistent while it is copied and writers are not blocked.
+ * Ending continuous operation rolls the delta back into the file.
+ */
+class TaskBackup {
+    private static final String TAG = "TaskBackup";
+    private static final String SUFFIX = ".btr";
+    // Number of backups kept in the backup directory.
+    static final int KEEP = 3;
+
+    // Copy the table's file into backupDir and return the copy.  Only
+    // tables in local files can be backed up this way.  Older backups
+    // beyond KEEP are removed.
+    static File backup(TaskTable table, File backupDir) throws IOException {
+        String path = table.getPath();
+        File source = new File(path);
+        if (table.isRemote() || !source.isFile())
+            throw new IOException("Not a local table: cannot back up");
+        if (!backupDir.isDirectory() && !backupDir.mkdirs())
+            throw new IOException("Cannot create " + backupDir);
+
+        long start = SystemClock.elapsedRealtime();
+        String name = source.getName();
+        if (name.endsWith(SUFFIX))
+            name = name.substring(0, name.length() - SUFFIX.length());
+        File target = new File(backupDir, name + "-" + System.currentTimeMillis() + SUFFIX);
+        File tmpfile = new File(target.getPath() + ".tmp");
+
+        // Begin and end must be issued by the same client.  The file lock
+        // keeps TaskCompactor from replacing the file meanwhile.
+        BtrieveClient client = table.getClient();
+        Lock lock = table.getSharedFileLock();
+        long size;
+        lock.lock();
+        try {
+            Btrieve.StatusCode status = client.ContinuousOperationBegin(path);
+            if (status != Btrieve.StatusCode.STATUS_CODE_NO_ERROR)
+                ZenDBHelper.raise_DbException(status, String.format("Starting backup of %s failed", path));
+            try {
+                size = copy(source, tmpfile);
+            } finally {
+                status = client.ContinuousOperationEnd(path);
+                if (status != Btrieve.StatusCode.STATUS_CODE_NO_ERROR)
+                    Log.e(TAG, String.format("Ending continuous operation failed: %s", status));
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (!tmpfile.renameTo(target)) {
+            tmpfile.delete();
+            throw new IOException("Cannot rename " + tmpfile + " to " + target);
+        }
+        Log.v(TAG, String.format("Backed up %d bytes to %s in %d ms",
+                                 size, target, SystemClock.elapsedRealtime() - start));
+        prune(backupDir, name);
+        return target;
+    }
+
+    // transferTo lets the kernel move the bytes without copying them
+    // through the Java heap.  It may copy less than asked, hence the loop.
+    private static long copy(File source, File target) throws IOException {
+        FileInputStream in = new FileInputStream(source);
+        try {
+            FileOutputStream out = new FileOutputStream(target);
+            try {
+                long size = in.getChannel().size();
+                long position = 0;
+                while (position < size) {
+                    position += in.getChannel().transferTo(position, size - position, out.getChannel());
+                }
+                out.getFD().sync();
+                return size;
+            } catch (IOException ex) {
+                target.delete();
+                throw ex;
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    // Backup names end in a timestamp, so name order is age order.
+    private static void prune(File backupDir, String name) {
+        String[] names = backupDir.list();
+        if (names == null)
+            return;
+        Arrays.sort(names);
+        int kept = 0;
+        for (int i = names.length - 1; i >= 0; i--) {
+            if (!names[i].startsWith(name + "-") || !names[i].endsWith(SUFFIX))
+                continue;
+            if (++kept > KEEP)
+                new File(backupDir, names[i]).delete();
+        }
+    }
+}
@@ -0,0 +1,295 @@
+/*
+ * Copyright 2017 Actian Corporation
+ */
+package com.actian.zen.tasklist;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.actian.zen.db.Btrieve;
+import com.actian.zen.db.BtrieveBulkCreatePayload;
+import com.actian.zen.db.BtrieveBulkCreateResult;
+import com.actian.zen.db.BtrieveBulkRetrieveAttributes;
+import com.actian.zen.db.BtrieveBulkRetrieveResult;
+import com.actian.zen.db.BtrieveClient;
+import com.actian.zen.db.BtrieveFile;
+import com.actian.zen.db.BtrieveFileAttributes;
+import com.actian.zen.db.BtrieveFileInformation;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * The TaskCompactor class rebuilds a local task table to give back the
+ * free pages left behind by deletes.  The live records are copied, ids
+ * included, into a new file created with the same attributes and indexes,
+ * and the new file is then renamed over the old one.
+ *
+ * The new file always uses the current TaskTable layout and
+ * RECORDS_MODE, so rebuilding a table written by an older build also
+ * upgrades it; TaskTable does this by itself when it opens such a file.
+ *
+ * The table's file lock is held exclusively from the copy until the swap,
+ * so no cursor, whether for the list, a search or a mirror sync, has the
+ * file open meanwhile.  If the lock cannot be had within LOCK_WAIT_MS the
+ * compaction gives up with DbException.Locked.
+ */
+class TaskCompactor {
+    private static final String TAG = "TaskCompactor";
+    // Records moved per bulk retrieve and bulk create.
+    private static final int COPY_PAGE = 256;
+    private static final int SCAN_PAGE = 64;
+    private static final long LOCK_WAIT_MS = 5000;
+
+    static class Result {
+        long records;
+        long sizeBefore;
+        long sizeAfter;
+        long scanMsBefore;
+        long scanMsAfter;
+
+        @Override
+        public String toString() {
+            return String.format("%d tasks, %d -> %d bytes, full scan %d -> %d ms",
+                                 records, sizeBefore, sizeAfter, scanMsBefore, scanMsAfter);
+        }
+    }
+
+    static Result compact(TaskTable table) throws IOException {
+        String path = table.getPath();
+        File file = new File(path);
+        if (table.isRemote() || !file.isFile())
+            throw new IOException("Not a local table: cannot compact");
+
+        Result result = new Result();
+        result.sizeBefore = file.length();
+        result.scanMsBefore = timeScan(table);
+        result.records = rebuild(table, path + ".compact");
+        table.invalidateStats();
+
+        result.sizeAfter = file.length();
+        result.scanMsAfter = timeScan(table);
+        Log.v(TAG, "Compacted: " + result);
+        return result;
+    }
+
+    // Rewrite a local table whose records have a shorter fixed part than
+    // TaskTable.RECORD_SIZE.  The fields added since are zero in every
+    // record.
+    static void upgrade(TaskTable table) {
+        if (table.isRemote())
+            throw new IllegalArgumentException("Not a local table: cannot upgrade");
+        long records = rebuild(table, table.getPath() + ".upgrade");
+        table.invalidateStats();
+        Log.v(TAG, String.format("Upgraded %d tasks to layout %d", records, TaskTable.LAYOUT_VERSION));
+    }
+
+    // Copy the table into a new file at tmpPath and swap it in.  Returns
+    // the number of records copied.  The source is read through its own
+    // handle rather than a TaskCursor, since its records need not have the
+    // current layout.
+    private static long rebuild(TaskTable table, String tmpPath) {
+        Lock lock = table.getExclusiveFileLock();
+        try {
+            if (!lock.tryLock(LOCK_WAIT_MS, TimeUnit.MILLISECONDS)) {
+                throw new DbException.Locked(Btrieve.StatusCode.STATUS_CODE_FILE_INUSE,
+                                             String.format("%s is in use", table.getPath()));
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new DbException.Locked(Btrieve.StatusCode.STATUS_CODE_FILE_INUSE,
+                                         String.format("Waiting for %s interrupted", table.getPath()));
+        }
+        try {
+            return rebuildLocked(table, tmpPath);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static long rebuildLocked(TaskTable table, String tmpPath) {
+        String path = table.getPath();
+        BtrieveClient client = table.getClient();
+        NativeResources natives = new NativeResources();
+        long records;
+        try {
+            BtrieveFile source = natives.add(new BtrieveFile());
+            check(client.FileOpen(source, path, null, Btrieve.OpenMode.OPEN_MODE_EXCLUSIVE));
+            try {
+                records = copy(natives, client, source, tmpPath);
+            } finally {
+                client.FileClose(source);
+            }
+        } catch (DbException ex) {
+            client.FileDelete(tmpPath);
+            throw ex;
+        } finally {
+            natives.close();
+        }
+        // Past this point tmpPath may be the only complete copy.
+        swap(client, path, tmpPath, path + ".old");
+        return records;
+    }
+
+    // Create tmpPath with the source file's attributes and copy all
+    // records into it.  Returns the number of records copied.
+    private static long copy(NativeResources natives, BtrieveClient client,
+                             BtrieveFile source, String tmpPath) {
+        BtrieveFileInformation info = natives.add(new BtrieveFileInformation());
+        check(source.GetInformation(info));
+        int sourceFixed = info.GetFixedRecordLength();
+        BtrieveFileAttributes attrs = natives.add(new BtrieveFileAttributes());
+        check(attrs.SetFixedRecordLength(TaskTable.RECORD_SIZE));
+        check(attrs.SetPageSize(info.GetPageSize(), info.GetPageCompression() != 0));
+        check(attrs.SetFreeSpaceThreshold(info.GetFreeSpaceThreshold()));
+        check(attrs.SetPreallocatedPageCount(info.GetPagePreallocation()));
+        check(attrs.SetBalancedIndexes(info.GetBalancedIndexes() != 0));
+        check(attrs.SetRecordCompressionMode(info.GetRecordCompressionMode()));
+        check(attrs.SetVariableLengthRecordsMode(TaskTable.RECORDS_MODE));
+        check(attrs.SetSystemDataMode(info.GetSystemDataMode()));
+        check(client.FileCreate(attrs, tmpPath, Btrieve.CreateMode.CREATE_MODE_OVERWRITE));
+
+        BtrieveFile target = natives.add(new BtrieveFile());
+        check(client.FileOpen(target, tmpPath, null, Btrieve.OpenMode.OPEN_MODE_EXCLUSIVE));
+        try {
+            check(TaskTable.createIndexes(natives, target));
+            long copied = 0;
+            // One byte past the fixed part is asked for in bulk; only
+            // records with notes have it, so the record lengths returned
+            // tell which notes to read.
+            byte[] fixed = new byte[sourceFixed + 1];
+            if (!readSucceeded(source, source.RecordRetrieveFirst(Btrieve.Index.INDEX_1, fixed))) {
+                if (source.GetLastStatusCode() == Btrieve.StatusCode.STATUS_CODE_END_OF_FILE)
+                    return copied;
+                ZenDBHelper.raise_DbException(source.GetLastStatusCode());
+            }
+            boolean hasNotes = info.GetVariableLengthRecordsMode()
+                    != Btrieve.VariableLengthRecordsMode.VARIABLE_LENGTH_RECORDS_MODE_NO;
+            BtrieveBulkRetrieveAttributes retrieve = natives.add(new BtrieveBulkRetrieveAttributes());
+            check(retrieve.AddField(TaskTable.ID_OFFSET, hasNotes ? sourceFixed + 1 : sourceFixed));
+            check(retrieve.SetMaximumRecordCount(COPY_PAGE));
+            BtrieveBulkRetrieveResult retrieved = natives.add(new BtrieveBulkRetrieveResult());
+            BtrieveBulkCreateResult created = natives.add(new BtrieveBulkCreateResult());
+            boolean skipCurrent = false;
+            while (true) {
+                check(retrieve.SetSkipCurrentRecord(skipCurrent));
+                Btrieve.StatusCode status = source.BulkRetrieveNext(retrieve, retrieved);
+                if (status != Btrieve.StatusCode.STATUS_CODE_NO_ERROR
+                        && status != Btrieve.StatusCode.STATUS_CODE_END_OF_FILE)
+                    ZenDBHelper.raise_DbException(status);
+                int count = retrieved.GetRecordCount();
+                if (count == 0)
+                    break;
+                BtrieveBulkCreatePayload payload = NativeResources.track(new BtrieveBulkCreatePayload());
+                try {
+                    // Ids are non-zero, so the engine keeps them.  Bulk
+                    // retrieve returns only the fixed part, so the notes
+                    // are read per task that has any.  That moves the
+                    // source, which is put back on the last task of the
+                    // page for the next bulk retrieve.
+                    int at = count - 1;
+                    for (int i = 0; i < count; i++) {
+                        retrieved.GetRecord(i, fixed);
+                        byte[] record = Arrays.copyOf(fixed, TaskTable.RECORD_SIZE);
+                        if (hasNotes && retrieved.GetRecordLength(i) > sourceFixed) {
+                            byte[] notes = readNotes(source, fixed, sourceFixed);
+                            at = i;
+                            if (notes.length > 0) {
+                                record = Arrays.copyOf(record, record.length + notes.length);
+                                System.arraycopy(notes, 0, record, TaskTable.RECORD_SIZE, notes.length);
+                            }
+                        }
+                        check(payload.AddRecord(record));
+                    }
+                    if (at != count - 1) {
+                        retrieved.GetRecord(count - 1, fixed);
+                        seek(source, fixed, sourceFixed);
+                    }
+                    check(target.BulkCreate(payload, created));
+                    if (created.GetRecordCount() != count)
+                        ZenDBHelper.raise_DbException(created.GetLastStatusCode());
+                } finally {
+                    NativeResources.delete(payload);
+                }
+                copied += count;
+                skipCurrent = true;
+            }
+            return copied;
+        } finally {
+            client.FileClose(target);
+        }
+    }
+
+    // Move to the source record whose fixed part is in fixed and read the
+    // notes stored after it.
+    private static byte[] readNotes(BtrieveFile source, byte[] fixed, int sourceFixed) {
+        seek(source, fixed, sourceFixed);
+        return TaskCursor.readChunks(source, sourceFixed);
+    }
+
+    // Move to the source record whose fixed part is in fixed.
+    private static void seek(BtrieveFile source, byte[] fixed, int sourceFixed) {
+        byte[] keybuf = Arrays.copyOfRange(fixed, TaskTable.ID_OFFSET, TaskTable.ID_OFFSET + TaskTable.ID_SIZE);
+        byte[] rawbuf = new byte[sourceFixed];
+        int count = source.RecordRetrieve(Btrieve.Comparison.COMPARISON_EQUAL, Btrieve.Index.INDEX_1,
+                                          keybuf, rawbuf, Btrieve.LockMode.LOCK_MODE_NONE);
+        if (!readSucceeded(source, count))
+            ZenDBHelper.raise_DbException(source.GetLastStatusCode());
+    }
+
+    // A buffer holding only the fixed part is too short for a record with
+    // notes, which still positions the file.
+    private static boolean readSucceeded(BtrieveFile source, int count) {
+        return count >= 0
+                || source.GetLastStatusCode() == Btrieve.StatusCode.STATUS_CODE_DATALENGTH_ERROR;
+    }
+
+    // Move the rebuilt file into place, putting the original back if that
+    // fails.  If the original cannot be put back either, both files are
+    // left where they are and the error names them.
+    private static void swap(BtrieveClient client, String path, String tmpPath, String oldPath) {
+        Btrieve.StatusCode status = client.FileRename(path, oldPath);
+        if (status != Btrieve.StatusCode.STATUS_CODE_NO_ERROR) {
+            client.FileDelete(tmpPath);
+            ZenDBHelper.raise_DbException(status, String.format("Replacing %s failed", path));
+        }
+        status = client.FileRename(tmpPath, path);
+        if (status != Btrieve.StatusCode.STATUS_CODE_NO_ERROR) {
+            Btrieve.StatusCode restored = client.FileRename(oldPath, path);
+            if (restored != Btrieve.StatusCode.STATUS_CODE_NO_ERROR) {
+                Log.e(TAG, String.format("Restoring %s failed: %s", path, restored));
+                ZenDBHelper.raise_DbException(status, String.format(
+                        "Replacing %s failed and the original could not be put back; "
+                        + "it is in %s, the rebuilt copy in %s", path, oldPath, tmpPath));
+            }
+            client.FileDelete(tmpPath);
+            ZenDBHelper.raise_DbException(status, String.format("Replacing %s failed", path));
+        }
+        status = client.FileDelete(oldPath);
+        if (status != Btrieve.StatusCode.STATUS_CODE_NO_ERROR)
+            Log.w(TAG, String.format("Deleting %s failed: %s", oldPath, status));
+    }
+
+    // Time a full newest-first scan, as done when the list is loaded.
+    private static long timeScan(TaskTable table) {
+        long start = SystemClock.elapsedRealtime();
+        TaskCursor cursor = new TaskCursor(table);
+        try {
+            TaskRecordIterator iter = new TaskRecordIterator(cursor, SCAN_PAGE);
+            while (iter.hasNext()) {
+                iter.next();
+            }
+        } finally {
+            cursor.close();
+        }
+        return SystemClock.elapsedRealtime() - start;
+    }
+
+    private static void check(Btrieve.StatusCode status) {
+        if (status != Btrieve.StatusCode.STATUS_CODE_NO_ERROR)
+            ZenDBHelper.raise_DbException(status);
+    }
+}
@@ -4,47 +4,181 @@
 package com.actian.zen.tasklist;
 
 import android.content.DialogInterface;
+import android.content.SharedPreferences;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.support.v7.app.AlertDialog;
 import android.support.v7.app.AppCompatActivity;
+import android.support.v7.util.DiffUtil;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.text.Editable;
 import android.text.InputFilter;
+import android.text.TextWatcher;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.BaseAdapter;
 import android.widget.EditText;
-import android.widget.ListView;
 import android.widget.TextView;
+import android.widget.Toast;
 
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class TaskListActivity extends AppCompatActivity {
     private static final String TAG = "TaskListActivity";
-    private TaskTable mTable;
-    private int mTitleSize;
-    private ListView mTaskListView;
+    // Number of tasks fetched per engine call when listing the table.
+    private static final int PAGE_SIZE = 64;
+    private static final String PREFS_NAME = "tasklist";
+    // Rows kept in the snapshot drawn on the next cold start.
+    private static final String SNAPSHOT_FILE = "tasklist.snapshot";
+    private static final int SNAPSHOT_ROWS = PAGE_SIZE;
+    // Consecutive connection failures after which the server is treated as
+    // down, and how long until it is probed again.
+    private static final int BREAKER_FAILURES = 3;
+    private static final long BREAKER_OPEN_MS = 30000;
+    // Remote data file; see openTable.  In mirror mode further servers
+    // holding copies of it may be listed after the primary; reads are
+    // spread across all of them.
+    private static final String[] REMOTE_URIS = {
+            "btrv://user@192.168.1.20/phonedemo?dbfile=tasklist.btr&pwd=passwd",
+    };
+    // Keep a local mirror of the remote table and serve everything from it;
+    // set in build.gradle.
+    private static final boolean MIRROR_REMOTE = BuildConfig.MIRROR_REMOTE;
+    private static final String MIRROR_FILE = "tasklist-mirror.btr";
+    private static final String WRITE_QUEUE_FILE = "tasklist.queue";
+    private static final long SYNC_INTERVAL_MS = 30000;
+    private static final int SYNC_BATCH = 256;
+    private static final String BACKUP_DIR = "backup";
+    // Tasks per profile in a debug benchmark run.
+    private static final int BENCHMARK_TASKS = 10000;
+    // All database work runs here, one operation at a time, off the main
+    // thread.
+    private static final ExecutorService sDbExecutor = Executors.newSingleThreadExecutor();
+    // In-memory list work (diffs, search filtering) runs here so it never
+    // waits behind database work.
+    private static final ExecutorService sDiffExecutor = Executors.newSingleThreadExecutor();
+    // Engine searches run here, in parallel with the database executor;
+    // each thread has its own client session on the table.
+    private static final ExecutorService sSearchExecutor = Executors.newSingleThreadExecutor();
+    // Backups run here so that copying the file never delays list work.
+    private static final ExecutorService sMaintenanceExecutor = Executors.newSingleThreadExecutor();
+    // Mirror sync runs here so remote latency never delays local reads.
+    private static final ExecutorService sSyncExecutor = Executors.newSingleThreadExecutor();
+    private volatile TaskTable mTable;
+    private volatile int mTitleSize;
+    private RecyclerView mTaskListView;
+    // Timers for syncs and probes, which are scheduled from background
+    // threads; the callbacks run on the main thread.
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
     private TaskListAdapter mAdapter;
-    private static boolean inited = false;
+    private static volatile boolean inited = false;
+    private volatile boolean mDestroyed = false;
+    private long mStartTime;
+    private TaskSearch mSearch;
+    private volatile DbRetry mRetry;
+    private final CircuitBreaker mBreaker = new CircuitBreaker(BREAKER_FAILURES, BREAKER_OPEN_MS);
+    // Writes made while the server is down, replayed by loadTasks, or in
+    // mirror mode all writes, pushed by the mirror sync.
+    private TaskWriteQueue mWriteQueue;
+    // Only used on the sync executor.
+    private TaskMirror mMirror;
+    private final AtomicBoolean mSyncPending = new AtomicBoolean();
+    private final AtomicBoolean mSyncScheduled = new AtomicBoolean();
+    // The last full list read from the server, shown while it is down.
+    // Only used on the database executor.
+    private ArrayList<TaskRecord> mCachedTasks;
+    private final AtomicBoolean mProbeScheduled = new AtomicBoolean();
+    private File mSnapshotFile;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        mStartTime = SystemClock.elapsedRealtime();
+
+        // Start loading the native library and the engine in the background
+        // while the layout is being inflated.  The first page of tasks is
+        // shown as soon as the table is open.
+        final SharedPreferences prefs = getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
+        mSnapshotFile = new File(getFilesDir(), SNAPSHOT_FILE);
+        mWriteQueue = new TaskWriteQueue(new File(getFilesDir(), WRITE_QUEUE_FILE));
+        mSearch = new TaskSearch(sSearchExecutor, sDiffExecutor, mWriteQueue, new TaskSearch.Listener() {
+            @Override
+            public void onSearchResult(List<TaskRecord> tasks) {
+                mAdapter.submitList(tasks);
+            }
+        });
+        sDbExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    openTable(prefs);
+                } catch (DbException ex) {
+                    Log.e(TAG, "Opening the task table failed", ex);
+                    showMessage("Opening the task table failed: " + ex.getMessage());
+                    return;
+                }
+                loadTasks(true);
+            }
+        });
+
         setContentView(R.layout.activity_task_list);
+        mTaskListView = (RecyclerView) findViewById(R.id.list_task);
+        LinearLayoutManager layoutManager = new LinearLayoutManager(this);
+        // Let the RecyclerView bind upcoming rows while the UI thread is idle.
+        layoutManager.setItemPrefetchEnabled(true);
+        mTaskListView.setLayoutManager(layoutManager);
+        mTaskListView.setHasFixedSize(true);
+        // Draw the rows shown last time right away; the scan started above
+        // replaces them once the table has been read.
+        mAdapter = new TaskListAdapter(TaskListSnapshot.read(mSnapshotFile));
+        mTaskListView.setAdapter(mAdapter);
+
+        EditText searchBox = (EditText) findViewById(R.id.search_box);
+        searchBox.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+                mSearch.onQueryChanged(s);
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+            }
+        });
+        logStage("inflate layout", mStartTime);
+    }
 
+    // Runs on the database executor.
+    private void openTable(SharedPreferences prefs) {
+        long stageStart = SystemClock.elapsedRealtime();
         if (! inited) {
             // Do one time initialization of ZenDB library interface.
-            ZenDBHelper.Initialize(this);
+            NativeResources.sTrackLeaks = BuildConfig.DEBUG;
+            ZenDBHelper.Initialize(getApplicationContext());
             inited = true;
+            logStage("engine init", stageStart);
+            stageStart = SystemClock.elapsedRealtime();
         }
         // specify the path for the database table used to store tasks.
         // 1) (local data file) Specify a local path.
         File filesDir = this.getFilesDir();
         File dbfilepath = new File(filesDir, "tasklist.btr");
-      //  mTable = new TaskTable(dbfilepath.getAbsolutePath());
+      //  mTable = new TaskTable(dbfilepath.getAbsolutePath(), prefs);
 
         // 2) (remote data file) The data file could be hosted on a remote machine
         // running the Actian Zen PSQL database engine. A URI (uniform resource
@@ -54,21 +188,153 @@ public class TaskListActivity extends AppCompatActivity {
         // mTable = new TaskTable("btrv://user@192.168.1.20/phonedemo?dbfile=tasklist.btr&pwd=passwd");
         // Example: using database security to a Zen PSQL server engine.
         // mTable = new TaskTable("btrv://user@192.168.1.20/phonedemo1?dbfile=tasklist.btr&pwd=passwd");
-           mTable=new TaskTable("btrv://user@192.168.1.20/phonedemo?dbfile=tasklist.btr&pwd=passwd");
         //
         // The application would need to handle exceptions due to the remote
         // machine not being accessible etc.
         // The application also needs to secure the credentials that have to be used for
         // remote access.
+        //
+        // 3) (mirrored data file) A local data file holds a copy of the remote
+        // one.  All reads and writes use the local file; TaskMirror pushes
+        // queued writes and pulls remote changes in the background.
+        if (MIRROR_REMOTE) {
+            mTable = new TaskTable(new File(filesDir, MIRROR_FILE).getAbsolutePath(), prefs);
+        } else {
+            mTable = new TaskTable(REMOTE_URIS[0], prefs);
+        }
+        mTable.enableTitleIndex();
         mTitleSize = mTable.getTitleSize();
-        mTaskListView = (ListView) findViewById(R.id.list_task);
+        mSearch.setTable(mTable);
+        mRetry = new DbRetry(mTable, DbRetry.DEFAULT_POLICY, MIRROR_REMOTE ? null : mBreaker);
+        logStage("table open", stageStart);
+        if (MIRROR_REMOTE)
+            requestSync();
+    }
+
+    // Sync the mirror soon.  Requests made while one is pending are merged.
+    private void requestSync() {
+        if (!MIRROR_REMOTE || !mSyncPending.compareAndSet(false, true))
+            return;
+        sSyncExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mSyncPending.set(false);
+                syncMirror();
+            }
+        });
+    }
+
+    // Runs on the sync executor.  The list is reloaded from the mirror if
+    // the sync changed it.
+    private void syncMirror() {
+        if (mDestroyed)
+            return;
+        try {
+            if (mMirror == null) {
+                SharedPreferences prefs = getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
+                ReplicaRouter remote = new ReplicaRouter(REMOTE_URIS, prefs, BREAKER_FAILURES,
+                                                         BREAKER_OPEN_MS);
+                mMirror = new TaskMirror(mTable.getPath(), REMOTE_URIS[0], remote, mWriteQueue, prefs, SYNC_BATCH);
+            }
+            if (mMirror.sync()) {
+                // Changed through another client; drop what mTable cached.
+                // The index is cleared on the database executor, where
+                // loadTasks may be filling it, so that the reload refills
+                // it rather than finding a partial index marked complete.
+                mTable.invalidateStats();
+                sDbExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        TitleTrigramIndex index = mTable.getTitleIndex();
+                        if (index != null)
+                            index.clear();
+                        loadTasks(false);
+                    }
+                });
+            }
+        } catch (DbException ex) {
+            Log.w(TAG, String.format("Mirror sync failed, %d writes queued", mWriteQueue.size()), ex);
+        } catch (IllegalStateException ex) {
+            Log.e(TAG, String.format("Mirror sync failed, %d writes queued", mWriteQueue.size()), ex);
+        }
+        scheduleSync();
+    }
 
-        updateUI();
+    private void scheduleSync() {
+        if (!mSyncScheduled.compareAndSet(false, true))
+            return;
+        mHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                mSyncScheduled.set(false);
+                if (!mDestroyed)
+                    requestSync();
+            }
+        }, SYNC_INTERVAL_MS);
+    }
+
+    private void logStage(String stage, long stageStart) {
+        long now = SystemClock.elapsedRealtime();
+        Log.v(TAG, String.format("Startup: %s took %d ms (%d ms since onCreate)",
+                                 stage, now - stageStart, now - mStartTime));
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mDestroyed = true;
+        mSearch.cancel();
+        // Queued behind any pending sync, maintenance, search and database
+        // work, including the table open.
+        final Runnable closeTable = new Runnable() {
+            @Override
+            public void run() {
+                if (mRetry != null)
+                    Log.v(TAG, String.format("Database retries: %d, give-ups: %d",
+                                             mRetry.getRetryCount(), mRetry.getGiveUpCount()));
+                if (mTable != null) {
+                    Log.v(TAG, String.format("Client sessions used: %d", mTable.getClientCount()));
+                    mTable.close();
+                }
+                if (NativeResources.sTrackLeaks) {
+                    int leaks = NativeResources.reportLeaks();
+                    Log.v(TAG, String.format("Native handles still allocated: %d", leaks));
+                }
+            }
+        };
+        sSyncExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mMirror != null) {
+                    Log.v(TAG, String.format("Mirror sync retries: %d", mMirror.getRetryCount()));
+                    mMirror.close();
+                    mMirror = null;
+                }
+                runAfter(new ExecutorService[] {sMaintenanceExecutor, sSearchExecutor, sDbExecutor},
+                         0, closeTable);
+            }
+        });
+    }
+
+    // Run r on the last of executors once each one before it has finished
+    // the work already queued on it.
+    private static void runAfter(final ExecutorService[] executors, final int i, final Runnable r) {
+        if (i == executors.length - 1) {
+            executors[i].execute(r);
+            return;
+        }
+        executors[i].execute(new Runnable() {
+            @Override
+            public void run() {
+                runAfter(executors, i + 1, r);
+            }
+        });
     }
 
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         getMenuInflater().inflate(R.menu.main_menu, menu);
+        menu.findItem(R.id.action_benchmark).setVisible(BuildConfig.DEBUG);
         return super.onCreateOptionsMenu(menu);
     }
 
@@ -76,6 +342,10 @@ public class TaskListActivity extends AppCompatActivity {
     public boolean onOptionsItemSelected(MenuItem item) {
         switch (item.getItemId()) {
             case R.id.action_new_task:
+                if (mTable == null) {
+                    // Still starting up.
+                    return true;
+                }
                 final EditText taskEditText = new EditText(this);
                 taskEditText.setFilters(new InputFilter[] {
                         new InputFilter.LengthFilter(mTitleSize-1)
@@ -87,13 +357,39 @@ public class TaskListActivity extends AppCompatActivity {
                         .setPositiveButton("Add", new DialogInterface.OnClickListener() {
                             @Override
                             public void onClick(DialogInterface dialog, int which) {
-                                String title = String.valueOf(taskEditText.getText());
-                                Log.v(TAG, String.format("Insert: %s", title));
-                                TaskRecord task = new TaskRecord(title);
-                                TaskCursor cursor = new TaskCursor(mTable);
-                                cursor.insert(task);
-                                cursor.close();
-                                updateUI();
+                                final String title = String.valueOf(taskEditText.getText());
+                                sDbExecutor.execute(new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        Log.v(TAG, String.format("Insert: %s", title));
+                                        final TaskRecord task = new TaskRecord(title);
+                                        // Keep writes in order behind any
+                                        // that are already queued.
+                                        if (MIRROR_REMOTE || !mWriteQueue.isEmpty()) {
+                                            mWriteQueue.queueInsert(title);
+                                            loadTasks(false);
+                                            requestSync();
+                                            return;
+                                        }
+                                        try {
+                                            mRetry.execute(new DbRetry.Operation<Void>() {
+                                                @Override
+                                                public Void run(TaskCursor cursor) {
+                                                    cursor.insert(task);
+                                                    return null;
+                                                }
+                                            }, false);
+                                        } catch (DbException.Unavailable ex) {
+                                            // The server was not contacted, so
+                                            // replaying later cannot duplicate.
+                                            Log.v(TAG, String.format("Insert queued: %s", title));
+                                            mWriteQueue.queueInsert(title);
+                                        } catch (DbException ex) {
+                                            Log.e(TAG, String.format("Insert failed: %s", title), ex);
+                                        }
+                                        loadTasks(false);
+                                    }
+                                });
                             }
                         })
                         .setNegativeButton("Cancel", null)
@@ -101,91 +397,528 @@ public class TaskListActivity extends AppCompatActivity {
                 dialog.show();
                 return true;
 
+            case R.id.action_backup:
+                if (mTable == null)
+                    return true;
+                final File backupDir = new File(getFilesDir(), BACKUP_DIR);
+                sMaintenanceExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        String message;
+                        try {
+                            File backup = TaskBackup.backup(mTable, backupDir);
+                            message = "Backed up to " + backup.getName();
+                        } catch (IOException | DbException ex) {
+                            Log.e(TAG, "Backup failed", ex);
+                            message = "Backup failed: " + ex.getMessage();
+                        }
+                        showMessage(message);
+                    }
+                });
+                return true;
+
+            case R.id.action_benchmark:
+                final File benchmarkDir = getCacheDir();
+                sMaintenanceExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        showMessage(TaskTableBenchmark.run(benchmarkDir, BENCHMARK_TASKS));
+                    }
+                });
+                return true;
+
+            case R.id.action_compact:
+                if (mTable == null)
+                    return true;
+                // On the database executor, so no list cursor is open.  The
+                // compactor waits a little for a search or a mirror sync to
+                // close theirs, and otherwise gives up without changing
+                // anything.
+                sDbExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        String message;
+                        try {
+                            message = "Compacted: " + TaskCompactor.compact(mTable);
+                        } catch (DbException.Locked ex) {
+                            Log.w(TAG, "Compaction skipped: table in use", ex);
+                            message = "The task list is busy; please try compacting again.";
+                        } catch (IOException | DbException ex) {
+                            Log.e(TAG, "Compaction failed", ex);
+                            message = "Compaction failed: " + ex.getMessage();
+                        }
+                        showMessage(message);
+                        loadTasks(false);
+                    }
+                });
+                return true;
+
             default:
                 return super.onOptionsItemSelected(item);
         }
     }
 
+    private void showMessage(final String message) {
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                if (!mDestroyed)
+                    Toast.makeText(TaskListActivity.this, message, Toast.LENGTH_LONG).show();
+            }
+        });
+    }
+
     public void deleteTask(View view) {
         View parent = (View) view.getParent();
-        TextView taskTextView = (TextView) parent.findViewById(R.id.task_title);
-        String title = String.valueOf(taskTextView.getText());
-        TaskCursor cursor = new TaskCursor(mTable);
-        // The 'id' field of the task record was associated with the view by
-        // calling 'setTag'.  Retrieve it using 'getTag'.
-        cursor.deleteById((int) parent.getTag());
-        cursor.close();
-        Log.v(TAG, String.format("Delete: %d %s", (int) parent.getTag(), title));
-        updateUI();
-    }
-
-    private void updateUI() {
+        // The row's view holder carries the 'id' field of the task record.
+        TaskViewHolder holder = (TaskViewHolder) mTaskListView.getChildViewHolder(parent);
+        final String title = String.valueOf(holder.title.getText());
+        final int id = holder.id;
+        if (mRetry == null)
+            return;
+        sDbExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                // Negative ids are queued inserts that have not reached the
+                // table yet.
+                if (MIRROR_REMOTE || id < 0 || !mWriteQueue.isEmpty()) {
+                    mWriteQueue.queueDelete(id);
+                    loadTasks(false);
+                    requestSync();
+                    return;
+                }
+                try {
+                    boolean deleted = mRetry.execute(new DbRetry.Operation<Boolean>() {
+                        @Override
+                        public Boolean run(TaskCursor cursor) {
+                            return cursor.deleteById(id);
+                        }
+                    }, true);
+                    if (deleted)
+                        Log.v(TAG, String.format("Delete: %d %s", id, title));
+                    else
+                        Log.v(TAG, String.format("Delete: %d %s was already gone", id, title));
+                } catch (DbException.Connection ex) {
+                    // Deletes are idempotent and safe to replay.
+                    Log.v(TAG, String.format("Delete queued: %d %s", id, title));
+                    mWriteQueue.queueDelete(id);
+                } catch (DbException ex) {
+                    Log.e(TAG, String.format("Delete failed: %d %s", id, title), ex);
+                }
+                loadTasks(false);
+            }
+        });
+    }
+
+    // Show the notes of the tapped task for editing.  Notes are not part
+    // of the list scan; they are read here, when asked for.
+    public void editNotes(View view) {
+        View parent = (View) view.getParent();
+        TaskViewHolder holder = (TaskViewHolder) mTaskListView.getChildViewHolder(parent);
+        final String title = String.valueOf(holder.title.getText());
+        final int id = holder.id;
+        final int version = holder.version;
+        // Queued inserts are not in the table yet.
+        if (id < 0 || mRetry == null)
+            return;
+        sDbExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final String notes;
+                try {
+                    notes = mRetry.execute(new DbRetry.Operation<String>() {
+                        @Override
+                        public String run(TaskCursor cursor) {
+                            return cursor.getNotes(id);
+                        }
+                    }, true);
+                } catch (DbException ex) {
+                    Log.e(TAG, String.format("Reading notes failed: %d %s", id, title), ex);
+                    showMessage("Reading notes failed: " + ex.getMessage());
+                    return;
+                }
+                if (notes == null)
+                    return;
+                // Notes waiting to be synced are newer than the stored ones.
+                String queued = mWriteQueue.queuedNotes(id);
+                final String shown = queued != null ? queued : notes;
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        showNotesDialog(id, title, version, shown);
+                    }
+                });
+            }
+        });
+    }
+
+    private void showNotesDialog(final int id, final String title, final int version, String notes) {
+        if (mDestroyed)
+            return;
+        final EditText notesEditText = new EditText(this);
+        notesEditText.setText(notes);
+        AlertDialog dialog = new AlertDialog.Builder(this)
+                .setTitle(title)
+                .setView(notesEditText)
+                .setPositiveButton("Save", new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        final String notes = String.valueOf(notesEditText.getText());
+                        sDbExecutor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                TaskRecord task = new TaskRecord(id, title);
+                                task.mVersion = version;
+                                if (MIRROR_REMOTE || !mWriteQueue.isEmpty()) {
+                                    Log.v(TAG, String.format("Notes queued: %d %s", id, title));
+                                    mWriteQueue.queueNotes(task, notes);
+                                    loadTasks(false);
+                                    requestSync();
+                                    return;
+                                }
+                                try {
+                                    mRetry.execute(new DbRetry.Operation<TaskRecord>() {
+                                        @Override
+                                        public TaskRecord run(TaskCursor cursor) {
+                                            return cursor.setNotes(id, notes);
+                                        }
+                                    }, true);
+                                    Log.v(TAG, String.format("Notes saved: %d %s", id, title));
+                                } catch (DbException.Connection ex) {
+                                    // Setting notes is idempotent and safe
+                                    // to replay.
+                                    Log.v(TAG, String.format("Notes queued: %d %s", id, title));
+                                    mWriteQueue.queueNotes(task, notes);
+                                } catch (RuntimeException ex) {
+                                    Log.e(TAG, String.format("Saving notes failed: %d %s", id, title), ex);
+                                    showMessage("Saving notes failed: " + ex.getMessage());
+                                }
+                                // The task has a new version.
+                                loadTasks(false);
+                            }
+                        });
+                    }
+                })
+                .setNeutralButton("Rename", new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        TaskRecord task = new TaskRecord(id, title);
+                        task.mVersion = version;
+                        showRenameDialog(task);
+                    }
+                })
+                .setNegativeButton("Cancel", null)
+                .create();
+        dialog.show();
+    }
+
+    // Rename task in place.  task carries the version that was displayed;
+    // if the task has been changed since, the rename is refused and the
+    // list reloaded to show the current title.  In mirror mode, or behind
+    // other queued writes, the rename is queued with that version and
+    // checked the same way when the sync replays it.
+    private void showRenameDialog(final TaskRecord task) {
+        final EditText titleEditText = new EditText(this);
+        titleEditText.setFilters(new InputFilter[] {
+                new InputFilter.LengthFilter(mTitleSize-1)
+        });
+        titleEditText.setText(task.getTitle());
+        AlertDialog dialog = new AlertDialog.Builder(this)
+                .setTitle("Rename task")
+                .setView(titleEditText)
+                .setPositiveButton("Rename", new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        final String oldTitle = task.getTitle();
+                        final String newTitle = String.valueOf(titleEditText.getText());
+                        sDbExecutor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                if (MIRROR_REMOTE || !mWriteQueue.isEmpty()) {
+                                    Log.v(TAG, String.format("Rename queued: %d %s -> %s",
+                                                             task.get_id(), oldTitle, newTitle));
+                                    mWriteQueue.queueUpdate(task, newTitle);
+                                    loadTasks(false);
+                                    requestSync();
+                                    return;
+                                }
+                                task.mTitle = newTitle;
+                                try {
+                                    // Not idempotent: a retry after a lost
+                                    // reply would see its own new version.
+                                    boolean updated = mRetry.execute(new DbRetry.Operation<Boolean>() {
+                                        @Override
+                                        public Boolean run(TaskCursor cursor) {
+                                            return cursor.update(task);
+                                        }
+                                    }, false);
+                                    if (updated)
+                                        Log.v(TAG, String.format("Rename: %d %s -> %s",
+                                                                 task.get_id(), oldTitle, task.getTitle()));
+                                    else
+                                        Log.v(TAG, String.format("Rename: %d %s was gone", task.get_id(), oldTitle));
+                                } catch (DbException.Conflict ex) {
+                                    Log.v(TAG, ex.getMessage());
+                                    showMessage("The task was changed elsewhere; please try again.");
+                                } catch (DbException.Unavailable ex) {
+                                    // The server was not contacted; the
+                                    // replay checks the version again.
+                                    Log.v(TAG, String.format("Rename queued: %d %s -> %s",
+                                                             task.get_id(), oldTitle, newTitle));
+                                    task.mTitle = oldTitle;
+                                    mWriteQueue.queueUpdate(task, newTitle);
+                                } catch (DbException ex) {
+                                    Log.e(TAG, String.format("Rename failed: %d %s", task.get_id(), oldTitle), ex);
+                                    showMessage("Rename failed: " + ex.getMessage());
+                                }
+                                loadTasks(false);
+                            }
+                        });
+                    }
+                })
+                .setNegativeButton("Cancel", null)
+                .create();
+        dialog.show();
+    }
+
+    // Runs on the database executor.  If streamFirstPage is set, the first
+    // page of tasks is handed to the list as soon as it has been read.
+    private void loadTasks(final boolean streamFirstPage) {
+        // mTable is null if opening it failed.
+        if (mDestroyed || mTable == null)
+            return;
+        // In mirror mode the sync pushes queued writes to the remote table.
+        if (!MIRROR_REMOTE && !mWriteQueue.isEmpty()) {
+            try {
+                mWriteQueue.flush(mRetry);
+                Log.v(TAG, "Queued writes replayed");
+            } catch (DbException ex) {
+                Log.w(TAG, String.format("Replaying writes failed, %d still queued",
+                                         mWriteQueue.size()), ex);
+            } catch (IllegalStateException ex) {
+                Log.e(TAG, String.format("Replaying writes failed, %d still queued",
+                                         mWriteQueue.size()), ex);
+            }
+        }
+        // The title index is filled by the first full scan and maintained
+        // by inserts and deletes after that.
+        final TitleTrigramIndex index = mTable.getTitleIndex();
+        final boolean fillIndex = index != null && !index.isComplete();
+        ArrayList<TaskRecord> taskList;
+        try {
+            taskList = mRetry.execute(new DbRetry.Operation<ArrayList<TaskRecord>>() {
+                @Override
+                public ArrayList<TaskRecord> run(TaskCursor cursor) {
+                    return scanTasks(cursor, streamFirstPage, fillIndex ? index : null);
+                }
+            }, true);
+        } catch (DbException.Connection ex) {
+            Log.w(TAG, "Server unavailable, showing cached tasks", ex);
+            if (mCachedTasks == null)
+                mCachedTasks = TaskListSnapshot.read(mSnapshotFile);
+            showTasks(mWriteQueue.applyTo(mCachedTasks), true);
+            scheduleProbe();
+            return;
+        } catch (DbException ex) {
+            Log.e(TAG, "Loading tasks failed", ex);
+            return;
+        }
+        if (fillIndex)
+            index.markComplete();
+
+        mCachedTasks = taskList;
+        showTasks(mWriteQueue.isEmpty() ? taskList : mWriteQueue.applyTo(taskList), true);
+        if (streamFirstPage)
+            logStage("full list", mStartTime);
+        try {
+            TaskListSnapshot.write(mSnapshotFile, taskList, SNAPSHOT_ROWS);
+        } catch (IOException ex) {
+            Log.w(TAG, "Writing list snapshot failed", ex);
+        }
+    }
+
+    // Reload once the circuit breaker lets a probe through, which also
+    // replays any queued writes.  At most one probe is pending at a time.
+    private void scheduleProbe() {
+        if (!mProbeScheduled.compareAndSet(false, true))
+            return;
+        mHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                mProbeScheduled.set(false);
+                if (mDestroyed)
+                    return;
+                sDbExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        loadTasks(false);
+                    }
+                });
+            }
+        }, mBreaker.getOpenDurationMs());
+    }
+
+    // One attempt at reading the whole table, newest task first.
+    private ArrayList<TaskRecord> scanTasks(TaskCursor cursor, boolean streamFirstPage,
+                                            TitleTrigramIndex index) {
         // taskList: a list of tasks to be displayed.
         ArrayList<TaskRecord> taskList = new ArrayList<>();
+        if (index != null)
+            index.clear();
         // Populate taskList by iterating through the database
-        // table.
-        TaskCursor cursor = new TaskCursor(mTable);
-        TaskRecordIterator iter = new TaskRecordIterator(cursor);
+        // table, newest task first.
+        TaskRecordIterator iter = new TaskRecordIterator(cursor, PAGE_SIZE);
         while (iter.hasNext()) {
             TaskRecord task = iter.next();
-            Log.v (TAG, String.format("updateUI: %d %s", task.get_id(), task.getTitle()));
+            Log.v (TAG, String.format("loadTasks: %d %s", task.get_id(), task.getTitle()));
             taskList.add(task);
+            if (index != null)
+                index.add(task);
+            if (streamFirstPage && taskList.size() == PAGE_SIZE) {
+                showTasks(new ArrayList<>(taskList), false);
+                logStage("first page", mStartTime);
+            }
         }
-        Log.v (TAG, "Close table");
-        cursor.close();
-
-        // Hand off the task list to the ListView via a custom adapter.
-        if (mAdapter == null) {
-            mAdapter = new TaskListAdapter(taskList);
-            mTaskListView.setAdapter(mAdapter);
-        } else {
-            mAdapter.setTaskList(taskList);
-            mAdapter.notifyDataSetChanged();
-        }
-
+        return taskList;
+    }
 
+    // Hand off the task list to the RecyclerView via a custom adapter.
+    // complete is false for a partial list streamed during startup.  While
+    // a search is active the search results are shown instead; a complete
+    // list re-runs the search against the new data.
+    private void showTasks(final ArrayList<TaskRecord> taskList, final boolean complete) {
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                if (mDestroyed)
+                    return;
+                if (complete)
+                    mSearch.setAllTasks(taskList);
+                if (!mSearch.isActive())
+                    mAdapter.submitList(taskList);
+            }
+        });
     }
 
-    private class TaskListAdapter extends BaseAdapter {
+    private class TaskListAdapter extends RecyclerView.Adapter<TaskViewHolder> {
 
-        ArrayList<TaskRecord> mTaskList;
+        List<TaskRecord> mTaskList;
+        // Incremented for every submitted list so that a diff which
+        // finishes after a newer list was submitted is dropped.
+        int mGeneration;
 
-        public TaskListAdapter(ArrayList<TaskRecord> tasklist) {
+        public TaskListAdapter(List<TaskRecord> tasklist) {
             mTaskList = tasklist;
+            // Task ids are assigned by the database and never reused.
+            setHasStableIds(true);
         }
 
         @Override
-        public int getCount() {
+        public int getItemCount() {
             return mTaskList.size();
         }
 
-        @Override
         public TaskRecord getItem(int position) {
             return mTaskList.get(position);
         }
 
         @Override
         public long getItemId(int position) {
-            return mTaskList.get(position).hashCode();
+            return mTaskList.get(position).get_id();
         }
 
         @Override
-        public View getView(int position, View convertView, ViewGroup container) {
-            TaskRecord rec = getItem(position);
-            if (convertView == null) {
-                convertView = getLayoutInflater().inflate(R.layout.item_task, container, false);
-            }
+        public TaskViewHolder onCreateViewHolder(ViewGroup container, int viewType) {
+            View row = getLayoutInflater().inflate(R.layout.item_task, container, false);
+            return new TaskViewHolder(row);
+        }
 
-            ((TextView) convertView.findViewById(R.id.task_title))
-                    .setText(rec.getTitle());
+        @Override
+        public void onBindViewHolder(TaskViewHolder holder, int position) {
+            TaskRecord rec = getItem(position);
+            holder.title.setText(rec.getTitle());
             // associate the task id with the view -- we use this later to look up the task
             // in the database.
-            convertView.setTag(rec.get_id());
-            return convertView;
+            holder.id = rec.get_id();
+            holder.version = rec.getVersion();
+        }
+
+        // Replace the displayed list.  Must be called on the UI thread.  The
+        // difference between the old and new list is computed on a background
+        // thread and applied as targeted insert/remove/change notifications.
+        public void submitList(final List<TaskRecord> newList) {
+            final List<TaskRecord> oldList = mTaskList;
+            final int generation = ++mGeneration;
+            if (oldList.isEmpty() || newList.isEmpty()) {
+                mTaskList = newList;
+                if (!oldList.isEmpty())
+                    notifyItemRangeRemoved(0, oldList.size());
+                if (!newList.isEmpty())
+                    notifyItemRangeInserted(0, newList.size());
+                return;
+            }
+            sDiffExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    final DiffUtil.DiffResult result = DiffUtil.calculateDiff(new TaskDiff(oldList, newList));
+                    runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (mDestroyed || generation != mGeneration)
+                                return;
+                            mTaskList = newList;
+                            result.dispatchUpdatesTo(TaskListAdapter.this);
+                        }
+                    });
+                }
+            });
         }
+    }
+
+    // Tasks are matched by id; a matched task changed if its title or
+    // version did.
+    private static class TaskDiff extends DiffUtil.Callback {
+        private final List<TaskRecord> mOld;
+        private final List<TaskRecord> mNew;
+
+        TaskDiff(List<TaskRecord> oldList, List<TaskRecord> newList) {
+            mOld = oldList;
+            mNew = newList;
+        }
+
+        @Override
+        public int getOldListSize() {
+            return mOld.size();
+        }
+
+        @Override
+        public int getNewListSize() {
+            return mNew.size();
+        }
+
+        @Override
+        public boolean areItemsTheSame(int oldPosition, int newPosition) {
+            return mOld.get(oldPosition).get_id() == mNew.get(newPosition).get_id();
+        }
+
+        @Override
+        public boolean areContentsTheSame(int oldPosition, int newPosition) {
+            TaskRecord oldTask = mOld.get(oldPosition);
+            TaskRecord newTask = mNew.get(newPosition);
+            return oldTask.getVersion() == newTask.getVersion()
+                    && oldTask.getTitle().equals(newTask.getTitle());
+        }
+    }
+
+    // Views of a list row, looked up once when the row is inflated.
+    private static class TaskViewHolder extends RecyclerView.ViewHolder {
+        final TextView title;
+        int id;
+        int version;
 
-        public void setTaskList(ArrayList<TaskRecord> taskList) {
-            mTaskList = taskList;
+        TaskViewHolder(View row) {
+            super(row);
+            title = (TextView) row.findViewById(R.id.task_title);
         }
     }
 
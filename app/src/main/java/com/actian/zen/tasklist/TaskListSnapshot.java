@@ -0,0 +1,102 @@
+/*
+ * Copyright 2017 Actian Corporation
+ */
+package com.actian.zen.tasklist;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The TaskListSnapshot class persists the rows last shown in the task list
+ * so that the next cold start can draw them before the engine is up.
+ * The file is memory-mapped on read and does not touch the Zen library.
+ *
+ * File layout (big-endian):
+ *   MAGIC, VERSION, row count                        3 x int
+ *   per row: id (int), title length (short), title   UTF-8 bytes
+ * Titles are cut to TaskTable.TITLE_SIZE bytes, at a character boundary.
+ */
+class TaskListSnapshot {
+    private static final int MAGIC = 0x54534e50;    // "TSNP"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 12;
+    // A row with an empty title.
+    private static final int MIN_ROW_SIZE = 6;
+
+    // Write up to maxRows tasks to file.  The snapshot is written to a
+    // temporary file first and renamed into place, so a reader never sees
+    // a partial file.
+    static void write(File file, List<TaskRecord> tasks, int maxRows) throws IOException {
+        int count = Math.min(tasks.size(), maxRows);
+        File tmpfile = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmpfile)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(count);
+            for (int i = 0; i < count; i++) {
+                TaskRecord task = tasks.get(i);
+                byte[] title = task.getTitle().getBytes(StandardCharsets.UTF_8);
+                int length = Math.min(title.length, TaskTable.TITLE_SIZE);
+                // Back up over continuation bytes to a whole character.
+                while (length < title.length && length > 0 && (title[length] & 0xC0) == 0x80)
+                    length--;
+                out.writeInt(task.get_id());
+                out.writeShort(length);
+                out.write(title, 0, length);
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmpfile.renameTo(file)) {
+            tmpfile.delete();
+            throw new IOException("Cannot rename " + tmpfile + " to " + file);
+        }
+    }
+
+    // Read a snapshot.  Returns an empty list if the file is missing or
+    // not a valid snapshot.
+    static ArrayList<TaskRecord> read(File file) {
+        ArrayList<TaskRecord> tasks = new ArrayList<>();
+        if (!file.exists())
+            return tasks;
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                FileChannel channel = raf.getChannel();
+                MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                if (buf.getInt() != MAGIC || buf.getInt() != VERSION)
+                    return tasks;
+                // The count is checked against the file size before the
+                // list is sized by it.
+                int count = buf.getInt();
+                if (count < 0 || count > (channel.size() - HEADER_SIZE) / MIN_ROW_SIZE)
+                    return tasks;
+                byte[] title = new byte[TaskTable.TITLE_SIZE];
+                tasks.ensureCapacity(count);
+                for (int i = 0; i < count; i++) {
+                    int id = buf.getInt();
+                    int length = buf.getShort() & 0xFFFF;
+                    buf.get(title, 0, length);
+                    tasks.add(new TaskRecord(id, new String(title, 0, length, StandardCharsets.UTF_8)));
+                }
+            } finally {
+                raf.close();
+            }
+        } catch (IOException | BufferUnderflowException | IndexOutOfBoundsException ex) {
+            tasks.clear();
+        }
+        return tasks;
+    }
+}
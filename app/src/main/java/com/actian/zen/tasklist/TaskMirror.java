@@ -0,0 +1,243 @@
+/*
+ * Copyright 2017 Actian Corporation
+ */
+package com.actian.zen.tasklist;
+
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import com.actian.zen.db.Btrieve;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * The TaskMirror class keeps a local task table in step with a remote one
+ * so that the app only ever reads from local storage.
+ *
+ * Local changes are queued in a TaskWriteQueue rather than written to the
+ * mirror directly.  sync() pushes the queue to the remote table, applying
+ * each write to the mirror with the id and version the remote table
+ * assigned, and then pulls the remote tasks changed since the last pull.
+ * Every write to the remote table gives the task the next version in the
+ * table, and INDEX_2 orders tasks by version and id, so the tasks after
+ * the last version and id pulled (the watermark) are exactly those
+ * inserted, renamed or given new notes since.  Only they are read.
+ *
+ * Deletes leave nothing to pull.  They are found by comparing record
+ * counts after the pull, and when the counts differ, the lists of ids;
+ * only the ID field of each record is read for that.
+ *
+ * Writes and the delete check go to the primary server.  Pulls may be
+ * served by a replica; one that lags only delays changes until a later
+ * pull, since the watermark never moves past what was actually read.
+ *
+ * The watermark is kept per mirror file and primary server, and starts
+ * over whenever the mirror is found empty, as it is after being created
+ * or recreated.
+ *
+ * A TaskMirror opens its own TaskTable on the local file and must only be
+ * used from one thread.
+ */
+class TaskMirror {
+    private static final String TAG = "TaskMirror";
+    private static final String PREF_WATERMARK_VERSION_PREFIX = "mirror_watermark_version_";
+    private static final String PREF_WATERMARK_ID_PREFIX = "mirror_watermark_id_";
+    private static final byte[] NO_NOTES = new byte[0];
+
+    private final TaskTable mLocal;
+    private final ReplicaRouter mRemote;
+    private final TaskWriteQueue mQueue;
+    private final SharedPreferences mPrefs;
+    private final int mBatchSize;
+    private final String mWatermarkVersionKey;
+    private final String mWatermarkIdKey;
+
+    TaskMirror(String localPath, String remoteUri, ReplicaRouter remote, TaskWriteQueue queue,
+               SharedPreferences prefs, int batchSize) {
+        mLocal = new TaskTable(localPath, prefs);
+        mRemote = remote;
+        mQueue = queue;
+        mPrefs = prefs;
+        mBatchSize = batchSize;
+        String digest = TaskTable.pathDigest(localPath + "\n" + remoteUri);
+        mWatermarkVersionKey = PREF_WATERMARK_VERSION_PREFIX + digest;
+        mWatermarkIdKey = PREF_WATERMARK_ID_PREFIX + digest;
+    }
+
+    // Push queued writes, then pull remote changes.  Returns true if the
+    // mirror changed.  A remote failure is thrown after the work done so
+    // far has been kept; the next sync carries on from there.
+    boolean sync() {
+        TaskCursor mirror = new TaskCursor(mLocal);
+        try {
+            boolean changed = !mQueue.isEmpty();
+            mQueue.flush(mRemote.primary(), mirror);
+            if (pull(mirror))
+                changed = true;
+            if (reconcile(mirror))
+                changed = true;
+            return changed;
+        } finally {
+            mirror.close();
+        }
+    }
+
+    // Copy the remote tasks changed after the watermark into the mirror.
+    private boolean pull(TaskCursor mirror) {
+        int version = 0;
+        int id = 0;
+        if (mirror.getRecordCount() > 0) {
+            version = mPrefs.getInt(mWatermarkVersionKey, 0);
+            id = mPrefs.getInt(mWatermarkIdKey, 0);
+        }
+        final HashMap<Integer, byte[]> notes = new HashMap<>();
+        int pulled = 0;
+        while (true) {
+            final int afterVersion = version;
+            final int afterId = id;
+            ArrayList<TaskRecord> batch = mRemote.read(
+                    new DbRetry.Operation<ArrayList<TaskRecord>>() {
+                        @Override
+                        public ArrayList<TaskRecord> run(TaskCursor cursor) {
+                            notes.clear();
+                            return cursor.retrieveChangedAfter(afterVersion, afterId, mBatchSize, notes);
+                        }
+                    });
+            for (TaskRecord task : batch) {
+                apply(mirror, task, notes.get(task.get_id()));
+            }
+            if (!batch.isEmpty()) {
+                TaskRecord last = batch.get(batch.size() - 1);
+                version = last.getVersion();
+                id = last.get_id();
+                mPrefs.edit()
+                        .putInt(mWatermarkVersionKey, version)
+                        .putInt(mWatermarkIdKey, id)
+                        .apply();
+                pulled += batch.size();
+            }
+            if (batch.size() < mBatchSize)
+                break;
+        }
+        if (pulled > 0)
+            Log.v(TAG, String.format("Pulled %d changed tasks, watermark %d/%d", pulled, version, id));
+        return pulled > 0;
+    }
+
+    // Make the mirror's copy of task, with notes (null for none), match the
+    // remote one, adding it if missing.
+    private static void apply(TaskCursor mirror, TaskRecord task, byte[] notes) {
+        if (notes == null)
+            notes = NO_NOTES;
+        if (!mirror.replace(task, notes))
+            mirror.insertCopy(task, notes);
+    }
+
+    // Records pushed by this client are already in the mirror when they
+    // are pulled, and a replayed insert may have been mirrored already.
+    static void insertIfMissing(TaskCursor mirror, TaskRecord task) {
+        try {
+            mirror.insertCopy(task, null);
+        } catch (DbException ex) {
+            if (ex.getStatus() != Btrieve.StatusCode.STATUS_CODE_DUPLICATE_KEY_VALUE)
+                throw ex;
+        }
+    }
+
+    // Remove mirror records deleted from the remote table by other
+    // clients.  The id lists are only compared when the counts differ.
+    // Remote tasks missing from the mirror, which a pull from a lagging
+    // replica may not have reached yet, are copied from the primary.
+    private boolean reconcile(TaskCursor mirror) {
+        long remoteCount = mRemote.readPrimary(new DbRetry.Operation<Long>() {
+            @Override
+            public Long run(TaskCursor cursor) {
+                return cursor.getRecordCount();
+            }
+        });
+        if (remoteCount == mirror.getRecordCount())
+            return false;
+
+        int[] remote = mRemote.readPrimary(new DbRetry.Operation<int[]>() {
+            @Override
+            public int[] run(TaskCursor cursor) {
+                return readIds(cursor);
+            }
+        });
+        int[] local = readIds(mirror);
+
+        // Both lists are in ascending id order.
+        int deleted = 0;
+        final ArrayList<Integer> missing = new ArrayList<>();
+        int r = 0;
+        for (int id : local) {
+            while (r < remote.length && remote[r] < id)
+                missing.add(remote[r++]);
+            if (r < remote.length && remote[r] == id) {
+                r++;
+            } else {
+                mirror.deleteById(id);
+                deleted++;
+            }
+        }
+        for (; r < remote.length; r++)
+            missing.add(remote[r]);
+
+        int added = 0;
+        if (!missing.isEmpty()) {
+            final HashMap<Integer, byte[]> notes = new HashMap<>();
+            TaskRecord[] found = mRemote.readPrimary(new DbRetry.Operation<TaskRecord[]>() {
+                @Override
+                public TaskRecord[] run(TaskCursor cursor) {
+                    notes.clear();
+                    int[] ids = new int[missing.size()];
+                    for (int i = 0; i < ids.length; i++)
+                        ids[i] = missing.get(i);
+                    TaskRecord[] tasks = cursor.lookupByIds(ids);
+                    for (TaskRecord task : tasks) {
+                        if (task != null)
+                            notes.put(task.get_id(), cursor.getNotesBytes(task.get_id()));
+                    }
+                    return tasks;
+                }
+            });
+            for (TaskRecord task : found) {
+                if (task != null) {
+                    apply(mirror, task, notes.get(task.get_id()));
+                    added++;
+                }
+            }
+        }
+        Log.v(TAG, String.format("Reconciled: %d deleted, %d added", deleted, added));
+        return deleted > 0 || added > 0;
+    }
+
+    // All ids in the table, in ascending order.
+    private int[] readIds(TaskCursor cursor) {
+        int[] ids = new int[mBatchSize];
+        int[] batch = new int[mBatchSize];
+        int count = 0;
+        int after = 0;
+        while (true) {
+            int n = cursor.retrieveIdsAfter(after, batch);
+            if (count + n > ids.length)
+                ids = Arrays.copyOf(ids, Math.max(ids.length * 2, count + n));
+            System.arraycopy(batch, 0, ids, count, n);
+            count += n;
+            if (n < batch.length)
+                return Arrays.copyOf(ids, count);
+            after = batch[n - 1];
+        }
+    }
+
+    long getRetryCount() {
+        return mRemote.getRetryCount();
+    }
+
+    void close() {
+        mLocal.close();
+        mRemote.close();
+    }
+}
@@ -9,6 +9,9 @@ package com.actian.zen.tasklist;
 public class TaskRecord {
     int mId;
     String mTitle;
+    // The table's change number at the task's last write; see
+    // TaskCursor.nextVersion.
+    int mVersion;
 
     TaskRecord(int id_, String title_) {
         mId = id_;
@@ -27,4 +30,8 @@ public class TaskRecord {
     public String getTitle() {
         return mTitle;
     }
+
+    public int getVersion() {
+        return mVersion;
+    }
 }
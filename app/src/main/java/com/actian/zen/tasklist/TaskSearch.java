@@ -0,0 +1,202 @@
+/*
+ * Copyright 2017 Actian Corporation
+ */
+package com.actian.zen.tasklist;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * The TaskSearch class implements search-as-you-type over the task list.
+ * Keystrokes are debounced; each query cancels the one still in flight.
+ * A query is answered in memory whenever a superset of its result is
+ * already known: the result of a query it contains (typing more narrows
+ * the result) or the full task list.  In the latter case the table's
+ * title trigram index, when enabled and complete, replaces the linear
+ * scan.  Only when none of these is available is the engine asked to scan
+ * the table with a title filter.
+ * Results from the index or the engine reflect the table only, so writes
+ * still waiting in the TaskWriteQueue are applied to them, as they are to
+ * the list.
+ * All public methods must be called on the UI thread.
+ */
+class TaskSearch {
+    static final long DEBOUNCE_MS = 250;
+    private static final int ENGINE_PAGE_SIZE = 256;
+
+    interface Listener {
+        // Called on the UI thread with the tasks matching the current query,
+        // or with the full list once the query has been cleared.
+        void onSearchResult(List<TaskRecord> tasks);
+    }
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final ExecutorService mDbExecutor;
+    private final ExecutorService mWorkExecutor;
+    private final Listener mListener;
+    private final TaskWriteQueue mQueue;
+    private volatile TaskTable mTable;
+
+    private String mQuery = "";
+    private List<TaskRecord> mAllTasks;
+    // The most recent completed result and the query it answers.
+    private String mResultQuery;
+    private List<TaskRecord> mResult;
+    private Future<?> mInFlight;
+
+    private final Runnable mDebounced = new Runnable() {
+        @Override
+        public void run() {
+            search();
+        }
+    };
+
+    // dbExecutor runs engine queries; workExecutor runs in-memory filtering.
+    // queue holds the writes not yet in the table.
+    TaskSearch(ExecutorService dbExecutor, ExecutorService workExecutor, TaskWriteQueue queue,
+               Listener listener) {
+        mDbExecutor = dbExecutor;
+        mWorkExecutor = workExecutor;
+        mQueue = queue;
+        mListener = listener;
+    }
+
+    // The table to query.  May be called from any thread.
+    void setTable(TaskTable table) {
+        mTable = table;
+    }
+
+    boolean isActive() {
+        return !mQuery.isEmpty();
+    }
+
+    // The text in the search box changed.
+    void onQueryChanged(CharSequence text) {
+        mQuery = text.toString().trim().toLowerCase(Locale.ROOT);
+        mHandler.removeCallbacks(mDebounced);
+        mHandler.postDelayed(mDebounced, DEBOUNCE_MS);
+    }
+
+    // A complete, fresh task list has been loaded.  Results computed from
+    // older data are dropped and the current query is run again.
+    void setAllTasks(List<TaskRecord> tasks) {
+        mAllTasks = tasks;
+        mResultQuery = null;
+        mResult = null;
+        if (isActive()) {
+            search();
+        }
+    }
+
+    void cancel() {
+        mHandler.removeCallbacks(mDebounced);
+        if (mInFlight != null) {
+            mInFlight.cancel(true);
+            mInFlight = null;
+        }
+    }
+
+    private void search() {
+        cancel();
+        final String query = mQuery;
+        if (query.isEmpty()) {
+            if (mAllTasks != null)
+                mListener.onSearchResult(mAllTasks);
+            return;
+        }
+        final List<TaskRecord> base;
+        if (mResultQuery != null && query.contains(mResultQuery)) {
+            base = mResult;
+        } else {
+            base = mAllTasks;
+        }
+        final TitleTrigramIndex index = mTable != null ? mTable.getTitleIndex() : null;
+        if (base != mResult && index != null && index.isComplete() && query.length() >= TitleTrigramIndex.GRAM) {
+            mInFlight = mWorkExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    ArrayList<TaskRecord> found = index.search(query);
+                    if (found != null)
+                        deliver(query, withQueuedWrites(found, query));
+                }
+            });
+        } else if (base != null) {
+            mInFlight = mWorkExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    ArrayList<TaskRecord> found = new ArrayList<>();
+                    for (int i = 0, n = base.size(); i < n; i++) {
+                        if ((i & 0xFF) == 0 && Thread.currentThread().isInterrupted())
+                            return;
+                        TaskRecord task = base.get(i);
+                        if (matches(task, query))
+                            found.add(task);
+                    }
+                    deliver(query, found);
+                }
+            });
+        } else {
+            mInFlight = mDbExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    TaskTable table = mTable;
+                    if (table == null)
+                        return;
+                    TaskCursor cursor = new TaskCursor(table);
+                    ArrayList<TaskRecord> candidates;
+                    try {
+                        candidates = cursor.findByTitle(query, ENGINE_PAGE_SIZE);
+                    } finally {
+                        cursor.close();
+                    }
+                    if (candidates == null)
+                        return;
+                    ArrayList<TaskRecord> found = new ArrayList<>(candidates.size());
+                    for (TaskRecord task : candidates) {
+                        if (matches(task, query))
+                            found.add(task);
+                    }
+                    deliver(query, withQueuedWrites(found, query));
+                }
+            });
+        }
+    }
+
+    // Matches read from the table, with queued deletes removed and queued
+    // inserts that match added.
+    private ArrayList<TaskRecord> withQueuedWrites(ArrayList<TaskRecord> found, String query) {
+        if (mQueue.isEmpty())
+            return found;
+        ArrayList<TaskRecord> result = new ArrayList<>();
+        for (TaskRecord task : mQueue.applyTo(found)) {
+            if (matches(task, query))
+                result.add(task);
+        }
+        return result;
+    }
+
+    private void deliver(final String query, final List<TaskRecord> found) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                // Drop results for a query that has since changed.
+                if (!query.equals(mQuery))
+                    return;
+                mInFlight = null;
+                mResultQuery = query;
+                mResult = found;
+                mListener.onSearchResult(found);
+            }
+        });
+    }
+
+    static boolean matches(TaskRecord task, String lowerQuery) {
+        return task.getTitle().toLowerCase(Locale.ROOT).contains(lowerQuery);
+    }
+}
@@ -3,17 +3,35 @@
  */
 package com.actian.zen.tasklist;
 
+import android.content.SharedPreferences;
+
 import com.actian.zen.db.Btrieve;
+import com.actian.zen.db.BtrieveBulkRetrieveAttributes;
+import com.actian.zen.db.BtrieveBulkRetrieveResult;
 import com.actian.zen.db.BtrieveClient;
 import com.actian.zen.db.BtrieveFile;
 import com.actian.zen.db.BtrieveFileAttributes;
+import com.actian.zen.db.BtrieveFileInformation;
+import com.actian.zen.db.BtrieveFilter;
 import com.actian.zen.db.BtrieveIndexAttributes;
 import com.actian.zen.db.BtrieveKeySegment;
 
+import java.io.ByteArrayOutputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  *  The TaskTable class.  Tasks are stored in a table in the Zen database.
@@ -21,12 +39,22 @@ import java.util.NoSuchElementException;
  *  operations.
  */
 public class TaskTable {
-    BtrieveClient client;
     String mTablePath;
 
-    //  Task records have two fields
+    //  Task records have three fields
     //  1) ID - a unique (auto-increment) number
     //  2) TITLE - a null terminated string (max length of 32).
+    //  3) VERSION - the table's change number at the task's last insert
+    //     or change.  Every write stores one more than the highest in the
+    //     table (see TaskCursor.nextVersion), so a task read earlier can be
+    //     told to have changed (see TaskCursor.update), and INDEX_2 lists
+    //     tasks in the order they were changed (see TaskMirror).
+    //  followed by an optional variable-length part
+    //  4) NOTES - UTF-8 text filling the rest of the record (up to
+    //     MAX_NOTES_SIZE bytes), absent for most tasks.
+    //
+    //  Scans read only the fixed part; notes are read and written on
+    //  their own with the chunk operations.
     //
     //  Begin Record layout
     //   0 ------------- ID_OFFSET=0
@@ -37,25 +65,228 @@ public class TaskTable {
     //           /|\
     //     TITLE  |      TITLE_SIZE=32
     //           \|/
-    //  36 ------------- RECORD_SIZE=4+32
+    //  36 ------------- VERSION_OFFSET=4+32
+    //           /|\
+    //   VERSION  |      VERSION_SIZE=4
+    //           \|/
+    //  40 ------------- RECORD_SIZE=4+32+4 (fixed part), NOTES_OFFSET
+    //           /|\
+    //     NOTES  |      0 - MAX_NOTES_SIZE
+    //           \|/
+    //  40+n ----------- end of record
 
     static final int ID_OFFSET = 0;
     static final int ID_SIZE = 4;
     static final int TITLE_OFFSET = ID_SIZE;
     static final int TITLE_SIZE = 32;
-    static final int RECORD_SIZE = ID_SIZE+TITLE_SIZE;
+    static final int VERSION_OFFSET = TITLE_OFFSET+TITLE_SIZE;
+    static final int VERSION_SIZE = 4;
+    static final int RECORD_SIZE = ID_SIZE+TITLE_SIZE+VERSION_SIZE;
+    static final int NOTES_OFFSET = RECORD_SIZE;
+    static final int MAX_NOTES_SIZE = 65536;
     // End Record layout
 
+    // INDEX_1 is on ID.  INDEX_2 is on VERSION and then ID, which makes
+    // its keys unique even among tasks last written before versions were
+    // numbered across the table.
+    static final int VERSION_KEY_SIZE = VERSION_SIZE+ID_SIZE;
+
+    // Variable allocation tails keep the notes on their own pages, so
+    // chunk operations on them do not rewrite the fixed part.
+    static final Btrieve.VariableLengthRecordsMode RECORDS_MODE =
+            Btrieve.VariableLengthRecordsMode.VARIABLE_LENGTH_RECORDS_MODE_YES_VARIABLE_ALLOCATION_TAILS;
+
+    // Version of the record layout and index definitions.  Bump this
+    // whenever either changes so that tables verified by an older build are
+    // checked again.
+    static final int LAYOUT_VERSION = 4;
+    private static final String PREF_VERIFIED_PREFIX = "table_verified_";
+
     public int getTitleSize() { return TITLE_SIZE;    }
 
+    /**
+     * File attributes used when the table's file is created.  A file that
+     * already exists keeps the attributes it was created with.
+     */
+    public static class CreateProfile {
+        final Btrieve.PageSize pageSize;
+        final Btrieve.FreeSpaceThreshold freeSpaceThreshold;
+        // 0 to let the file grow a page at a time.
+        final int preallocatedPages;
+        final Btrieve.RecordCompressionMode compressionMode;
+        final Btrieve.SystemDataMode systemDataMode;
+
+        public CreateProfile(Btrieve.PageSize pageSize,
+                             Btrieve.FreeSpaceThreshold freeSpaceThreshold,
+                             int preallocatedPages,
+                             Btrieve.RecordCompressionMode compressionMode,
+                             Btrieve.SystemDataMode systemDataMode) {
+            this.pageSize = pageSize;
+            this.freeSpaceThreshold = freeSpaceThreshold;
+            this.preallocatedPages = preallocatedPages;
+            this.compressionMode = compressionMode;
+            this.systemDataMode = systemDataMode;
+        }
+    }
+
+    // The engine's defaults.
+    public static final CreateProfile DEFAULT_PROFILE = new CreateProfile(
+            Btrieve.PageSize.PAGE_SIZE_DEFAULT, Btrieve.FreeSpaceThreshold.FREE_SPACE_THRESHOLD_DEFAULT,
+            0, Btrieve.RecordCompressionMode.RECORD_COMPRESSION_MODE_NONE,
+            Btrieve.SystemDataMode.SYSTEM_DATA_MODE_DEFAULT);
+
+    // Candidate for tables expected to grow large: 4 KB pages, 1024 pages
+    // preallocated, and no system data, since INDEX_1 already identifies
+    // every record.  Compare against the others with TaskTableBenchmark
+    // on the target device before choosing it.
+    public static final CreateProfile LARGE_PROFILE = new CreateProfile(
+            Btrieve.PageSize.PAGE_SIZE_4096, Btrieve.FreeSpaceThreshold.FREE_SPACE_THRESHOLD_DEFAULT,
+            1024, Btrieve.RecordCompressionMode.RECORD_COMPRESSION_MODE_NONE,
+            Btrieve.SystemDataMode.SYSTEM_DATA_MODE_NO);
+
+    // Candidate for keeping the file small: the unused bytes of titles
+    // shorter than TITLE_SIZE are zero, and run-length encoding stores
+    // such runs in a few bytes.  Compressed records have variable length,
+    // so the free space threshold applies.  Measure with
+    // TaskTableBenchmark as for LARGE_PROFILE.
+    public static final CreateProfile COMPACT_PROFILE = new CreateProfile(
+            Btrieve.PageSize.PAGE_SIZE_DEFAULT, Btrieve.FreeSpaceThreshold.FREE_SPACE_THRESHOLD_10_PERCENT,
+            0, Btrieve.RecordCompressionMode.RECORD_COMPRESSION_MODE_RUN_LENGTH_ENCODING,
+            Btrieve.SystemDataMode.SYSTEM_DATA_MODE_DEFAULT);
+
+    private final CreateProfile mProfile;
+    private final SharedPreferences mPrefs;
+    private final String mVerifiedKey;
+    // False for tables that are only opened, never created (see openExisting).
+    private final boolean mCreate;
+
+    // TaskCompactor replaces the file under its path.  Every cursor holds
+    // the path's lock shared while it is open and the compactor holds it
+    // exclusively, so no cursor opens the file between the renames, finds
+    // it missing and recreates it empty.  Tables on the same path, such as
+    // the app's and the mirror's, share the lock.
+    private static final HashMap<String, ReentrantReadWriteLock> sFileLocks = new HashMap<>();
+    private final ReentrantReadWriteLock mFileLock;
+
+    // Each thread gets a client session of its own, with its own client
+    // id, so that cursors on different threads do not serialize inside the
+    // engine.  A cursor keeps using the client of the thread that opened it.
+    private static final int SERVICE_AGENT_ID = 0xAAAB;
+    private static final AtomicInteger sNextClientId = new AtomicInteger(1001);
+    private final ThreadLocal<BtrieveClient> mThreadClient = new ThreadLocal<>();
+    private final ArrayList<BtrieveClient> mClients = new ArrayList<>();
+    private volatile boolean mClosed = false;
+
     protected BtrieveClient getClient() {
+        if (mClosed)
+            throw new IllegalStateException("Table is closed");
+        BtrieveClient client = mThreadClient.get();
+        if (client == null) {
+            client = NativeResources.track(new BtrieveClient(SERVICE_AGENT_ID,
+                                                             sNextClientId.getAndIncrement()));
+            synchronized (mClients) {
+                mClients.add(client);
+            }
+            mThreadClient.set(client);
+        }
         return client;
     }
 
+    // Number of client sessions opened on this table so far.
+    int getClientCount() {
+        synchronized (mClients) {
+            return mClients.size();
+        }
+    }
+
     protected String getPath() {
         return mTablePath;
     }
 
+    private static ReentrantReadWriteLock fileLock(String filepath) {
+        synchronized (sFileLocks) {
+            ReentrantReadWriteLock lock = sFileLocks.get(filepath);
+            if (lock == null) {
+                lock = new ReentrantReadWriteLock();
+                sFileLocks.put(filepath, lock);
+            }
+            return lock;
+        }
+    }
+
+    // Held shared by cursors, exclusively while the file is replaced.
+    Lock getSharedFileLock() {
+        return mFileLock.readLock();
+    }
+
+    Lock getExclusiveFileLock() {
+        return mFileLock.writeLock();
+    }
+
+    // Whether the table is a file on a database server rather than on this
+    // device.
+    boolean isRemote() {
+        return mTablePath.startsWith("btrv://");
+    }
+
+    // Cached table statistics.  Loaded on first use and dropped whenever a
+    // TaskCursor modifies the table.  Changes made by other clients are not
+    // seen until the next local mutation.
+    private boolean mStatsValid = false;
+    private long mCount;
+    private int mMinId;
+    private int mMaxId;
+
+    // Number of tasks in the table, from the file information rather than
+    // a scan.
+    public synchronized long count() {
+        loadStats();
+        return mCount;
+    }
+
+    // Smallest task id in the table, or 0 if the table is empty.
+    public synchronized int minId() {
+        loadStats();
+        return mMinId;
+    }
+
+    // Largest task id in the table, or 0 if the table is empty.
+    public synchronized int maxId() {
+        loadStats();
+        return mMaxId;
+    }
+
+    synchronized void invalidateStats() {
+        mStatsValid = false;
+    }
+
+    // Optional in-memory trigram index over task titles, for substring
+    // search.  Null until enabled.
+    private volatile TitleTrigramIndex mTitleIndex;
+
+    public void enableTitleIndex() {
+        if (mTitleIndex == null)
+            mTitleIndex = new TitleTrigramIndex();
+    }
+
+    TitleTrigramIndex getTitleIndex() {
+        return mTitleIndex;
+    }
+
+    private void loadStats() {
+        if (mStatsValid)
+            return;
+        TaskCursor cursor = new TaskCursor(this);
+        try {
+            mCount = cursor.getRecordCount();
+            mMinId = cursor.keyRetrieveFirstId();
+            mMaxId = cursor.keyRetrieveLastId();
+        } finally {
+            cursor.close();
+        }
+        mStatsValid = true;
+    }
+
     // Given a raw byte array representing a record, construct
     // a TaskRecord object.
     public TaskRecord getRecord (byte[] rawbuf) {
@@ -65,8 +296,15 @@ public class TaskTable {
         recbuf.position(offset);
         int id = recbuf.getInt();
         offset += ID_SIZE;
-        String title = ZenDBHelper.getZString(recbuf, offset, TITLE_SIZE);
-        return new TaskRecord(id, title);
+        String title = ZStringCodec.getZString(recbuf, offset, TITLE_SIZE);
+        TaskRecord task = new TaskRecord(id, title);
+        task.mVersion = recbuf.getInt(VERSION_OFFSET);
+        return task;
+    }
+
+    // title as it reads back once stored: cut to fit TITLE_SIZE.
+    String storedTitle(String title) {
+        return getRecord(putRecord(new TaskRecord(title))).getTitle();
     }
 
     // Pack a TaskRecord object into a byte array suitable for
@@ -78,45 +316,130 @@ public class TaskTable {
         // For new records the id field mst be zero.
         // Database will assign auto-increment value.
         rec.putInt(task.get_id());
-        String title = task.getTitle();
-        // for simplicity we truncate title down to the max size.
-        if (title.length() >= TITLE_SIZE) {
-            title = title.substring(0, TITLE_SIZE-1);
-        }
-        ZenDBHelper.putZString(rec, TITLE_OFFSET, TITLE_SIZE, title);
+        // for simplicity we truncate title down to the max size.  The
+        // limit is in UTF-8 bytes, so the cut is made on a code point
+        // boundary as the title is encoded.
+        ZStringCodec.putZStringTruncated(rec, TITLE_OFFSET, TITLE_SIZE, task.getTitle());
+        rec.putInt(VERSION_OFFSET, task.getVersion());
         return rawbuf;
     }
 
     // Class constructor
     public TaskTable(String filepath) {
-        client = new BtrieveClient(0xAAAB, 1001);
+        this(filepath, null);
+    }
+
+    // Class constructor.  Once the table has been created or found to
+    // exist, that fact is remembered in prefs so later starts skip the
+    // FileCreate round trip.  prefs may be null.
+    public TaskTable(String filepath, SharedPreferences prefs) {
+        this(filepath, prefs, DEFAULT_PROFILE);
+    }
+
+    // Class constructor.  If the file has to be created, profile gives its
+    // attributes.
+    public TaskTable(String filepath, SharedPreferences prefs, CreateProfile profile) {
+        this(filepath, prefs, profile, true);
+    }
+
+    private TaskTable(String filepath, SharedPreferences prefs, CreateProfile profile, boolean create) {
         mTablePath = filepath;
+        mProfile = profile;
+        mPrefs = prefs;
+        mCreate = create;
+        mFileLock = fileLock(filepath);
+        mVerifiedKey = PREF_VERIFIED_PREFIX + pathDigest(filepath);
+        if (!create || prefs != null && prefs.getInt(mVerifiedKey, 0) == LAYOUT_VERSION)
+            return;
         createIfNeeded(filepath);
+        if (prefs != null)
+            prefs.edit().putInt(mVerifiedKey, LAYOUT_VERSION).apply();
+    }
+
+    // A table on a file that is only ever opened, such as a replica kept
+    // by the server.  Nothing is created, upgraded or recreated, and the
+    // file is not touched until a cursor is opened, which fails if the
+    // file is missing.
+    static TaskTable openExisting(String filepath) {
+        return new TaskTable(filepath, null, DEFAULT_PROFILE, false);
+    }
+
+    // Whether a missing file is created again (see recreate).
+    boolean mayCreate() {
+        return mCreate;
+    }
+
+    // Called by TaskCursor when the file of a table verified earlier is
+    // gone, for example deleted by the user or dropped on the server.  The
+    // verification is forgotten and the table created again, empty.
+    synchronized void recreate() {
+        if (mPrefs != null)
+            mPrefs.edit().remove(mVerifiedKey).apply();
+        createIfNeeded(mTablePath);
+        if (mPrefs != null)
+            mPrefs.edit().putInt(mVerifiedKey, LAYOUT_VERSION).apply();
+        invalidateStats();
+        TitleTrigramIndex index = mTitleIndex;
+        if (index != null)
+            index.clear();
+    }
+
+    // Remote paths carry credentials, so only a digest of the path is
+    // written to local storage.
+    static String pathDigest(String filepath) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            byte[] digest = md.digest(filepath.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new RuntimeException("Exception " + ex.getMessage());
+        }
     }
 
-    // Create the Zen database table if not already present.
+    // Create the Zen database table if not already present.  Uses the
+    // calling thread's client rather than opening another client session.
     public void createIfNeeded(String filepath) {
-        BtrieveClient client = new BtrieveClient(0xAAAD, 0x0102);
-        BtrieveFileAttributes f_attrs = new BtrieveFileAttributes();
+        NativeResources natives = new NativeResources();
+        try {
+            createIfNeeded(natives, filepath);
+        } finally {
+            natives.close();
+        }
+    }
+
+    private void createIfNeeded(NativeResources natives, String filepath) {
+        BtrieveClient client = getClient();
+        BtrieveFileAttributes f_attrs = natives.add(new BtrieveFileAttributes());
         Btrieve.StatusCode status = f_attrs.SetFixedRecordLength(RECORD_SIZE);
+        if (status == Btrieve.StatusCode.STATUS_CODE_NO_ERROR)
+            status = f_attrs.SetVariableLengthRecordsMode(RECORDS_MODE);
+        if (status == Btrieve.StatusCode.STATUS_CODE_NO_ERROR)
+            status = f_attrs.SetPageSize(mProfile.pageSize);
+        if (status == Btrieve.StatusCode.STATUS_CODE_NO_ERROR)
+            status = f_attrs.SetFreeSpaceThreshold(mProfile.freeSpaceThreshold);
+        if (status == Btrieve.StatusCode.STATUS_CODE_NO_ERROR && mProfile.preallocatedPages > 0)
+            status = f_attrs.SetPreallocatedPageCount(mProfile.preallocatedPages);
+        if (status == Btrieve.StatusCode.STATUS_CODE_NO_ERROR)
+            status = f_attrs.SetRecordCompressionMode(mProfile.compressionMode);
+        if (status == Btrieve.StatusCode.STATUS_CODE_NO_ERROR)
+            status = f_attrs.SetSystemDataMode(mProfile.systemDataMode);
         if (status == Btrieve.StatusCode.STATUS_CODE_NO_ERROR) {
             status = client.FileCreate(f_attrs, filepath, Btrieve.CreateMode.CREATE_MODE_NO_OVERWRITE);
             if (status == Btrieve.StatusCode.STATUS_CODE_FILE_ALREADY_EXISTS) {
+                upgradeIfNeeded(natives, client, filepath);
                 return;
             }
         }
 
-        // Make an index on the ID field.
         if (status == Btrieve.StatusCode.STATUS_CODE_NO_ERROR) {
-            BtrieveIndexAttributes iattrs = new BtrieveIndexAttributes();
-            BtrieveKeySegment ks = new BtrieveKeySegment();
-            ks.SetField(0, ID_SIZE, Btrieve.DataType.DATA_TYPE_AUTOINCREMENT);
-            iattrs.AddKeySegment(ks);
-
-            BtrieveFile handle = new BtrieveFile();
+            BtrieveFile handle = natives.add(new BtrieveFile());
             status = client.FileOpen(handle, filepath, null, Btrieve.OpenMode.OPEN_MODE_NORMAL);
             if (status == Btrieve.StatusCode.STATUS_CODE_NO_ERROR) {
-                status = handle.IndexCreate(iattrs);
+                status = createIndexes(natives, handle);
                 client.FileClose(handle);
             }
         }
@@ -126,23 +449,152 @@ public class TaskTable {
         }
     }
 
+    // A local file written by a build with a shorter fixed part (before
+    // the VERSION field) is rebuilt in the current layout, and one without
+    // INDEX_2 gets the index added in place.  A server table is shared
+    // with other clients, which may still use the old layout, so it is
+    // never changed from here; it has to be migrated on the server.
+    private void upgradeIfNeeded(NativeResources natives, BtrieveClient client, String filepath) {
+        BtrieveFile handle = natives.add(new BtrieveFile());
+        Btrieve.StatusCode status = client.FileOpen(handle, filepath, null, Btrieve.OpenMode.OPEN_MODE_NORMAL);
+        if (status != Btrieve.StatusCode.STATUS_CODE_NO_ERROR)
+            ZenDBHelper.raise_DbException(status);
+        int fixedLength;
+        int indexCount;
+        try {
+            BtrieveFileInformation info = natives.add(new BtrieveFileInformation());
+            status = handle.GetInformation(info);
+            if (status != Btrieve.StatusCode.STATUS_CODE_NO_ERROR)
+                ZenDBHelper.raise_DbException(status);
+            fixedLength = info.GetFixedRecordLength();
+            indexCount = info.GetIndexCount();
+            if (fixedLength >= RECORD_SIZE && indexCount < 2 && !isRemote()) {
+                status = createVersionIndex(natives, handle);
+                if (status != Btrieve.StatusCode.STATUS_CODE_NO_ERROR)
+                    ZenDBHelper.raise_DbException(status, String.format("Indexing %s failed", filepath));
+                indexCount = 2;
+            }
+        } finally {
+            client.FileClose(handle);
+        }
+        if (fixedLength >= RECORD_SIZE && indexCount >= 2)
+            return;
+        if (isRemote() && fixedLength < RECORD_SIZE) {
+            throw new DbException(Btrieve.StatusCode.STATUS_CODE_INVALID_RECORD_LENGTH, String.format(
+                    "Server table needs migration: records are %d bytes, this version needs %d",
+                    fixedLength, RECORD_SIZE));
+        }
+        if (isRemote()) {
+            throw new DbException(Btrieve.StatusCode.STATUS_CODE_INVALID_INDEX_NUMBER,
+                    "Server table needs migration: it has no version index");
+        }
+        TaskCompactor.upgrade(this);
+    }
+
+    // Define the task table's indexes on a newly created, open file.
+    static Btrieve.StatusCode createIndexes(NativeResources natives, BtrieveFile handle) {
+        // Make an index on the ID field.
+        BtrieveIndexAttributes iattrs = natives.add(new BtrieveIndexAttributes());
+        BtrieveKeySegment ks = natives.add(new BtrieveKeySegment());
+        ks.SetField(0, ID_SIZE, Btrieve.DataType.DATA_TYPE_AUTOINCREMENT);
+        iattrs.AddKeySegment(ks);
+        Btrieve.StatusCode status = handle.IndexCreate(iattrs);
+        if (status != Btrieve.StatusCode.STATUS_CODE_NO_ERROR)
+            return status;
+        return createVersionIndex(natives, handle);
+    }
+
+    // INDEX_2, on VERSION and ID.  Its keys change with every write.
+    private static Btrieve.StatusCode createVersionIndex(NativeResources natives, BtrieveFile handle) {
+        BtrieveIndexAttributes iattrs = natives.add(new BtrieveIndexAttributes());
+        iattrs.SetIndex(Btrieve.Index.INDEX_2);
+        iattrs.SetModifiable(true);
+        BtrieveKeySegment version = natives.add(new BtrieveKeySegment());
+        version.SetField(VERSION_OFFSET, VERSION_SIZE, Btrieve.DataType.DATA_TYPE_INTEGER);
+        iattrs.AddKeySegment(version);
+        BtrieveKeySegment id = natives.add(new BtrieveKeySegment());
+        id.SetField(ID_OFFSET, ID_SIZE, Btrieve.DataType.DATA_TYPE_INTEGER);
+        iattrs.AddKeySegment(id);
+        return handle.IndexCreate(iattrs);
+    }
+
+    // Key buffer for INDEX_2.
+    static byte[] versionKey(int version, int id) {
+        byte[] keybuf = new byte[VERSION_KEY_SIZE];
+        ByteBuffer.wrap(keybuf).order(ByteOrder.LITTLE_ENDIAN).putInt(version).putInt(id);
+        return keybuf;
+    }
+
+    // Release the clients when the table is no longer used.  All cursors
+    // on the table must have been closed.
+    public void close() {
+        mClosed = true;
+        synchronized (mClients) {
+            for (BtrieveClient client : mClients) {
+                NativeResources.delete(client);
+            }
+            mClients.clear();
+        }
+    }
+
 }
 
 /**
  * The TaskCursor class a cursor or handle to the TaskTable.
  */
-class TaskCursor {
+class TaskCursor implements AutoCloseable {
+    // Notes are read this many bytes per engine call.
+    private static final int NOTES_CHUNK = 4096;
+    // lookupByIds walks the index over gaps of up to this many ids between
+    // wanted ids, and seeks across wider ones.
+    private static final int MAX_WALK_GAP = 16;
+    // Most records read by one bulk retrieve while walking.
+    private static final int MAX_WALK_PAGE = 256;
+    // Records read per engine call by findInsertedAfter.
+    private static final int FIND_PAGE = 64;
     private BtrieveFile m_handle;
     private TaskTable m_table;
+    // The client of the thread that opened the cursor.
+    private BtrieveClient m_client;
+    // Bulk retrieve attributes and results are reused for every page read
+    // through this cursor and deleted on close.
+    private BtrieveBulkRetrieveAttributes m_bulkAttrs;
+    private BtrieveBulkRetrieveResult m_bulkResult;
+    // The table's file lock, held shared until close.
+    private Lock m_fileLock;
 
     TaskCursor(TaskTable table) {
-        m_handle = new BtrieveFile();
+        this(table, Btrieve.OpenMode.OPEN_MODE_NORMAL);
+    }
+
+    // Open the table in the given mode, for example exclusively to keep
+    // other clients out while the whole file is processed.
+    TaskCursor(TaskTable table, Btrieve.OpenMode mode) {
+        m_handle = NativeResources.track(new BtrieveFile());
         m_table = table;
+        m_client = table.getClient();
+        m_fileLock = table.getSharedFileLock();
+        m_fileLock.lock();
 
-        Btrieve.StatusCode status=table.getClient().FileOpen(m_handle, table.getPath(), null,
-                                                             Btrieve.OpenMode.OPEN_MODE_NORMAL);
-        if (status != Btrieve.StatusCode.STATUS_CODE_NO_ERROR)
+        Btrieve.StatusCode status=m_client.FileOpen(m_handle, table.getPath(), null, mode);
+        if (status == Btrieve.StatusCode.STATUS_CODE_FILE_NOT_FOUND && table.mayCreate()) {
+            // The table was verified once, so the file has gone since.
+            try {
+                table.recreate();
+            } catch (RuntimeException ex) {
+                NativeResources.delete(m_handle);
+                m_handle = null;
+                m_fileLock.unlock();
+                throw ex;
+            }
+            status = m_client.FileOpen(m_handle, table.getPath(), null, mode);
+        }
+        if (status != Btrieve.StatusCode.STATUS_CODE_NO_ERROR) {
+            NativeResources.delete(m_handle);
+            m_handle = null;
+            m_fileLock.unlock();
             ZenDBHelper.raise_DbException(status, String.format("Opening %s failed", table.getPath()));
+        }
 
     }
 
@@ -150,7 +602,13 @@ class TaskCursor {
         return  m_table.getRecord(rawbuf);
     }
 
-    // Find the record which has the given id field.
+    String storedTitle(String title) {
+        return m_table.storedTitle(title);
+    }
+
+    // Find the record which has the given id field.  Returns null if there
+    // is no such record; a miss is an expected outcome and does not throw.
+    // Other failures raise a DbException.
     public TaskRecord lookupById(int _id) {
         // Set up a key buffer with the id of interest.
         byte[] keybuf = new byte[TaskTable.ID_SIZE];
@@ -159,17 +617,335 @@ class TaskCursor {
         int count=m_handle.RecordRetrieve (Btrieve.Comparison.COMPARISON_EQUAL,
                                            Btrieve.Index.INDEX_1,
                                            keybuf, rawbuf, Btrieve.LockMode.LOCK_MODE_NONE);
-        if (count < 0)
-            ZenDBHelper.raise_DbException(m_handle.GetLastStatusCode());
+        if (readFailed(count)) {
+            Btrieve.StatusCode status = m_handle.GetLastStatusCode();
+            if (status == Btrieve.StatusCode.STATUS_CODE_KEY_VALUE_NOT_FOUND) {
+                return null;
+            } else {
+                ZenDBHelper.raise_DbException(status);
+            }
+        }
         return getRecord(rawbuf);
     }
 
+    // Find the records with the given ids.  Returns an array parallel to
+    // ids holding the task for each id, or null where there is no such
+    // task.  The ids are visited in ascending order: runs of nearby ids
+    // are read with bulk retrieves along the index, and only the gaps
+    // between runs cost a seek.
+    public TaskRecord[] lookupByIds(int[] ids) {
+        TaskRecord[] found = new TaskRecord[ids.length];
+        int[] sorted = ids.clone();
+        Arrays.sort(sorted);
+        HashMap<Integer, TaskRecord> byId = new HashMap<>();
+        ArrayList<TaskRecord> page = new ArrayList<>();
+        // The record the cursor is positioned on.
+        TaskRecord current = null;
+        int i = 0;
+        while (i < sorted.length) {
+            if (current != null && sorted[i] <= current.get_id()) {
+                // Read already, or not in the table.
+                i++;
+                continue;
+            }
+            if (current == null || sorted[i] - current.get_id() > MAX_WALK_GAP) {
+                // A missing id still positions the cursor on the next
+                // record, from where the walk can go on.
+                current = seek(Btrieve.Comparison.COMPARISON_GREATER_THAN_OR_EQUAL, sorted[i]);
+                if (current == null)
+                    break;
+                byId.put(current.get_id(), current);
+                continue;
+            }
+            // Ids are unique, so the run up to sorted[end] holds at most
+            // as many records as the ids it spans.
+            int end = i;
+            while (end + 1 < sorted.length && sorted[end + 1] - sorted[end] <= MAX_WALK_GAP)
+                end++;
+            page.clear();
+            int count = Math.min(sorted[end] - current.get_id(), MAX_WALK_PAGE);
+            if (bulkRetrieveNext(count, true, page) == 0)
+                break;
+            for (TaskRecord task : page) {
+                byId.put(task.get_id(), task);
+            }
+            current = page.get(page.size() - 1);
+        }
+        for (int k = 0; k < ids.length; k++) {
+            found[k] = byId.get(ids[k]);
+        }
+        return found;
+    }
+
+    // Position on the first record whose id compares to _id as asked, and
+    // return it; null if there is none.
+    private TaskRecord seek(Btrieve.Comparison comparison, int _id) {
+        byte[] keybuf = new byte[TaskTable.ID_SIZE];
+        ByteBuffer.wrap(keybuf).order(ByteOrder.LITTLE_ENDIAN).putInt(_id);
+        byte[] rawbuf = new byte[TaskTable.RECORD_SIZE];
+        int count = m_handle.RecordRetrieve(comparison, Btrieve.Index.INDEX_1,
+                                            keybuf, rawbuf, Btrieve.LockMode.LOCK_MODE_NONE);
+        if (readFailed(count)) {
+            Btrieve.StatusCode status = m_handle.GetLastStatusCode();
+            if (status == Btrieve.StatusCode.STATUS_CODE_KEY_VALUE_NOT_FOUND
+                    || status == Btrieve.StatusCode.STATUS_CODE_END_OF_FILE) {
+                return null;
+            }
+            ZenDBHelper.raise_DbException(status);
+        }
+        return getRecord(rawbuf);
+    }
+
+    // The first task with an id greater than afterId and the title that an
+    // insert of title stores, or null if there is none.  Tells whether an
+    // insert whose reply was lost reached the table.
+    public TaskRecord findInsertedAfter(int afterId, String title) {
+        String stored = m_table.storedTitle(title);
+        while (true) {
+            ArrayList<TaskRecord> batch = retrieveAfterId(afterId, FIND_PAGE);
+            for (TaskRecord task : batch) {
+                if (task.getTitle().equals(stored))
+                    return task;
+            }
+            if (batch.size() < FIND_PAGE)
+                return null;
+            afterId = batch.get(batch.size() - 1).get_id();
+        }
+    }
+
+    // Retrieve up to maxCount records with ids greater than _id, in
+    // ascending id order.  Returns an empty list if there are none.
+    public ArrayList<TaskRecord> retrieveAfterId(int _id, int maxCount) {
+        ArrayList<TaskRecord> tasks = new ArrayList<>();
+        TaskRecord first = seek(Btrieve.Comparison.COMPARISON_GREATER_THAN, _id);
+        if (first == null)
+            return tasks;
+        tasks.add(first);
+        if (maxCount > 1)
+            bulkRetrieveNext(maxCount - 1, true, tasks);
+        return tasks;
+    }
+
+    // Retrieve up to maxCount tasks that come after the given version and
+    // id on INDEX_2, that is, in the order they were last changed.  Pass
+    // 0, 0 to start from the beginning.  The notes of the tasks that have
+    // any are read as well and put in notes by id.
+    public ArrayList<TaskRecord> retrieveChangedAfter(int version, int _id, int maxCount,
+                                                      Map<Integer, byte[]> notes) {
+        ArrayList<TaskRecord> tasks = new ArrayList<>();
+        ArrayList<Integer> withNotes = new ArrayList<>();
+        byte[] rawbuf = new byte[TaskTable.RECORD_SIZE + 1];
+        int count = m_handle.RecordRetrieve(Btrieve.Comparison.COMPARISON_GREATER_THAN,
+                                            Btrieve.Index.INDEX_2,
+                                            TaskTable.versionKey(version, _id), rawbuf,
+                                            Btrieve.LockMode.LOCK_MODE_NONE);
+        if (readFailed(count)) {
+            Btrieve.StatusCode status = m_handle.GetLastStatusCode();
+            if (status == Btrieve.StatusCode.STATUS_CODE_KEY_VALUE_NOT_FOUND
+                    || status == Btrieve.StatusCode.STATUS_CODE_END_OF_FILE)
+                return tasks;
+            ZenDBHelper.raise_DbException(status);
+        }
+        TaskRecord first = getRecord(rawbuf);
+        tasks.add(first);
+        if (count < 0)
+            withNotes.add(first.get_id());
+        if (maxCount > 1) {
+            NativeResources natives = new NativeResources();
+            try {
+                // One byte past the fixed part is asked for.  The engine
+                // only has it for tasks with notes, so the length of each
+                // record returned tells which tasks those are.
+                BtrieveBulkRetrieveAttributes attrs = natives.add(new BtrieveBulkRetrieveAttributes());
+                attrs.AddField(TaskTable.ID_OFFSET, TaskTable.RECORD_SIZE + 1);
+                attrs.SetMaximumRecordCount(maxCount - 1);
+                attrs.SetSkipCurrentRecord(true);
+                BtrieveBulkRetrieveResult result = natives.add(new BtrieveBulkRetrieveResult());
+                Btrieve.StatusCode status = m_handle.BulkRetrieveNext(attrs, result);
+                if (status != Btrieve.StatusCode.STATUS_CODE_NO_ERROR
+                        && status != Btrieve.StatusCode.STATUS_CODE_END_OF_FILE) {
+                    ZenDBHelper.raise_DbException(status);
+                }
+                for (int i = 0, n = result.GetRecordCount(); i < n; i++) {
+                    result.GetRecord(i, rawbuf);
+                    TaskRecord task = getRecord(rawbuf);
+                    tasks.add(task);
+                    if (result.GetRecordLength(i) > TaskTable.RECORD_SIZE)
+                        withNotes.add(task.get_id());
+                }
+            } finally {
+                natives.close();
+            }
+        }
+        for (int id : withNotes) {
+            byte[] bytes = getNotesBytes(id);
+            if (bytes != null)
+                notes.put(id, bytes);
+        }
+        return tasks;
+    }
+
+    // Read the ids of the tasks after _id, in ascending order, into ids
+    // and return how many were read; fewer than ids.length once the end
+    // of the table is reached.  Only the ID field of each record is sent.
+    public int retrieveIdsAfter(int _id, int[] ids) {
+        TaskRecord first = seek(Btrieve.Comparison.COMPARISON_GREATER_THAN, _id);
+        if (first == null)
+            return 0;
+        ids[0] = first.get_id();
+        if (ids.length == 1)
+            return 1;
+        NativeResources natives = new NativeResources();
+        try {
+            BtrieveBulkRetrieveAttributes attrs = natives.add(new BtrieveBulkRetrieveAttributes());
+            attrs.AddField(TaskTable.ID_OFFSET, TaskTable.ID_SIZE);
+            attrs.SetMaximumRecordCount(ids.length - 1);
+            attrs.SetSkipCurrentRecord(true);
+            BtrieveBulkRetrieveResult result = natives.add(new BtrieveBulkRetrieveResult());
+            Btrieve.StatusCode status = m_handle.BulkRetrieveNext(attrs, result);
+            if (status != Btrieve.StatusCode.STATUS_CODE_NO_ERROR
+                    && status != Btrieve.StatusCode.STATUS_CODE_END_OF_FILE) {
+                ZenDBHelper.raise_DbException(status);
+            }
+            int count = result.GetRecordCount();
+            byte[] idbuf = new byte[TaskTable.ID_SIZE];
+            for (int i = 0; i < count; i++) {
+                result.GetRecord(i, idbuf);
+                ids[i + 1] = ByteBuffer.wrap(idbuf).order(ByteOrder.LITTLE_ENDIAN).getInt();
+            }
+            return count + 1;
+        } finally {
+            natives.close();
+        }
+    }
+
+    // Retrieves into a RECORD_SIZE buffer read the fixed part only; for a
+    // task with notes the engine reports the buffer as too short, which is
+    // not a failure here.
+    private boolean readFailed(int count) {
+        return count < 0
+                && m_handle.GetLastStatusCode() != Btrieve.StatusCode.STATUS_CODE_DATALENGTH_ERROR;
+    }
+
+    // Notes of the task with the given id as UTF-8 bytes, empty if it has
+    // none, or null if there is no such task.  Leaves the cursor on that
+    // task.
+    byte[] getNotesBytes(int _id) {
+        if (lookupById(_id) == null)
+            return null;
+        return readChunks(m_handle, TaskTable.NOTES_OFFSET);
+    }
+
+    // Read the current record of handle from offset to its end.
+    static byte[] readChunks(BtrieveFile handle, int offset) {
+        ByteArrayOutputStream notes = new ByteArrayOutputStream();
+        byte[] chunk = new byte[NOTES_CHUNK];
+        while (true) {
+            int count = handle.RecordRetrieveChunk(offset, NOTES_CHUNK, chunk);
+            if (count < 0) {
+                Btrieve.StatusCode status = handle.GetLastStatusCode();
+                // Past the end of the record, or a table created before
+                // notes existed.
+                if (status == Btrieve.StatusCode.STATUS_CODE_CHUNK_OFFSET_TOO_LONG
+                        || status == Btrieve.StatusCode.STATUS_CODE_CHUNK_INCOMPATIBLE_FILE)
+                    break;
+                ZenDBHelper.raise_DbException(status);
+            }
+            notes.write(chunk, 0, count);
+            offset += count;
+            if (count < NOTES_CHUNK)
+                break;
+        }
+        return notes.toByteArray();
+    }
+
+    // Notes of the task with the given id, "" if it has none, or null if
+    // there is no such task.  Notes are never read by scans; fetch them
+    // when they are shown.
+    public String getNotes(int _id) {
+        byte[] notes = getNotesBytes(_id);
+        return notes != null ? new String(notes, StandardCharsets.UTF_8) : null;
+    }
+
+    // Replace the notes of the task with the given id; "" removes them.
+    // Returns the task with its new version, or null if there is no such
+    // task.  The new text is written over the old in place, together with
+    // the version, which lies just before it, and any remainder cut off.
+    public TaskRecord setNotes(int _id, String notes) {
+        byte[] bytes = encodeNotes(notes);
+        beginChange();
+        boolean done = false;
+        try {
+            int version = nextVersion();
+            TaskRecord task = lookupById(_id);
+            if (task != null) {
+                byte[] chunk = new byte[TaskTable.VERSION_SIZE + bytes.length];
+                ByteBuffer.wrap(chunk).order(ByteOrder.LITTLE_ENDIAN).putInt(version).put(bytes);
+                checkNotesStatus(m_handle.RecordUpdateChunk(TaskTable.VERSION_OFFSET, chunk));
+                checkNotesStatus(m_handle.RecordTruncate(TaskTable.NOTES_OFFSET + bytes.length));
+                task.mVersion = version;
+            }
+            done = true;
+            return task;
+        } finally {
+            endChange(done);
+        }
+    }
+
+    // Add text to the end of the notes of the task with the given id
+    // without reading them.  Returns false if there is no such task.
+    public boolean appendNotes(int _id, String text) {
+        byte[] bytes = encodeNotes(text);
+        beginChange();
+        boolean done = false;
+        try {
+            int version = nextVersion();
+            boolean found = lookupById(_id) != null;
+            if (found && bytes.length > 0) {
+                byte[] versionbuf = new byte[TaskTable.VERSION_SIZE];
+                ByteBuffer.wrap(versionbuf).order(ByteOrder.LITTLE_ENDIAN).putInt(version);
+                checkNotesStatus(m_handle.RecordAppendChunk(bytes));
+                checkNotesStatus(m_handle.RecordUpdateChunk(TaskTable.VERSION_OFFSET, versionbuf));
+            }
+            done = true;
+            return found;
+        } finally {
+            endChange(done);
+        }
+    }
+
+    private static byte[] encodeNotes(String notes) {
+        byte[] bytes = notes.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > TaskTable.MAX_NOTES_SIZE)
+            throw new RuntimeException("Invalid field length: " + bytes.length + " > " + TaskTable.MAX_NOTES_SIZE);
+        return bytes;
+    }
+
+    // Compacting rebuilds a local file in the current layout; a server
+    // table is never rebuilt from here (see TaskTable.upgradeIfNeeded).
+    private void checkNotesStatus(Btrieve.StatusCode status) {
+        if (status == Btrieve.StatusCode.STATUS_CODE_CHUNK_INCOMPATIBLE_FILE) {
+            ZenDBHelper.raise_DbException(status, String.format(
+                    m_table.isRemote()
+                            ? "%s was created before notes were supported; it has to be migrated on the server"
+                            : "%s was created before notes were supported; compact it to upgrade",
+                    m_table.getPath()));
+        }
+        if (status != Btrieve.StatusCode.STATUS_CODE_NO_ERROR)
+            ZenDBHelper.raise_DbException(status);
+    }
+
+    // Status of the last operation on this cursor.
+    public Btrieve.StatusCode getLastStatus() {
+        return m_handle.GetLastStatusCode();
+    }
+
     // Retrieve the first record using the specified index.
     // index may be Btrieve.INDEX_NONE.
     public TaskRecord retrieveFirst(Btrieve.Index index) {
         byte[] rawbuf = new byte[TaskTable.RECORD_SIZE];
         int count = m_handle.RecordRetrieveFirst(index, rawbuf);
-        if (count < 0) {
+        if (readFailed(count)) {
             Btrieve.StatusCode status = m_handle.GetLastStatusCode();
             if (status == Btrieve.StatusCode.STATUS_CODE_END_OF_FILE) {
                 return null;
@@ -183,7 +959,36 @@ class TaskCursor {
     public TaskRecord retrieveNext() {
         byte[] rawbuf = new byte[TaskTable.RECORD_SIZE];
         int count = m_handle.RecordRetrieveNext(rawbuf);
-        if (count < 0) {
+        if (readFailed(count)) {
+            Btrieve.StatusCode status = m_handle.GetLastStatusCode();
+            if (status == Btrieve.StatusCode.STATUS_CODE_END_OF_FILE) {
+                return null;
+            } else {
+                ZenDBHelper.raise_DbException(status);
+            }
+        }
+        return getRecord(rawbuf);
+    }
+
+    // Retrieve the last record using the specified index.
+    public TaskRecord retrieveLast(Btrieve.Index index) {
+        byte[] rawbuf = new byte[TaskTable.RECORD_SIZE];
+        int count = m_handle.RecordRetrieveLast(index, rawbuf);
+        if (readFailed(count)) {
+            Btrieve.StatusCode status = m_handle.GetLastStatusCode();
+            if (status == Btrieve.StatusCode.STATUS_CODE_END_OF_FILE) {
+                return null;
+            } else {
+                ZenDBHelper.raise_DbException(status);
+            }
+        }
+        return getRecord(rawbuf);
+    }
+
+    public TaskRecord retrievePrevious() {
+        byte[] rawbuf = new byte[TaskTable.RECORD_SIZE];
+        int count = m_handle.RecordRetrievePrevious(rawbuf);
+        if (readFailed(count)) {
             Btrieve.StatusCode status = m_handle.GetLastStatusCode();
             if (status == Btrieve.StatusCode.STATUS_CODE_END_OF_FILE) {
                 return null;
@@ -194,29 +999,354 @@ class TaskCursor {
         return getRecord(rawbuf);
     }
 
-    // Insert a new TaskRecord object into the task table.
+    // Retrieve up to maxCount records preceding the current position in a
+    // single engine call, appending them to 'out' in descending key order.
+    // If skipCurrent is false the record the cursor is positioned on is
+    // returned first.  Returns the number of records retrieved, 0 once the
+    // beginning of the table has been reached.
+    public int bulkRetrievePrevious(int maxCount, boolean skipCurrent, List<TaskRecord> out) {
+        return bulkRetrieve(false, maxCount, skipCurrent, out);
+    }
+
+    // Retrieve up to maxCount records following the current position in a
+    // single engine call, appending them to 'out' in ascending key order.
+    // If skipCurrent is false the record the cursor is positioned on is
+    // returned first.  Returns the number of records retrieved, 0 once the
+    // end of the table has been reached.
+    public int bulkRetrieveNext(int maxCount, boolean skipCurrent, List<TaskRecord> out) {
+        return bulkRetrieve(true, maxCount, skipCurrent, out);
+    }
+
+    private int bulkRetrieve(boolean forward, int maxCount, boolean skipCurrent, List<TaskRecord> out) {
+        if (m_bulkAttrs == null) {
+            m_bulkAttrs = NativeResources.track(new BtrieveBulkRetrieveAttributes());
+            m_bulkAttrs.AddField(TaskTable.ID_OFFSET, TaskTable.RECORD_SIZE);
+            m_bulkResult = NativeResources.track(new BtrieveBulkRetrieveResult());
+        }
+        m_bulkAttrs.SetMaximumRecordCount(maxCount);
+        m_bulkAttrs.SetSkipCurrentRecord(skipCurrent);
+        Btrieve.StatusCode status;
+        if (forward)
+            status = m_handle.BulkRetrieveNext(m_bulkAttrs, m_bulkResult);
+        else
+            status = m_handle.BulkRetrievePrevious(m_bulkAttrs, m_bulkResult);
+        if (status != Btrieve.StatusCode.STATUS_CODE_NO_ERROR
+                && status != Btrieve.StatusCode.STATUS_CODE_END_OF_FILE) {
+            ZenDBHelper.raise_DbException(status);
+        }
+        int count = m_bulkResult.GetRecordCount();
+        byte[] rawbuf = new byte[TaskTable.RECORD_SIZE];
+        for (int i = 0; i < count; i++) {
+            m_bulkResult.GetRecord(i, rawbuf);
+            out.add(getRecord(rawbuf));
+        }
+        return count;
+    }
+
+    // Find the tasks whose title contains 'text', newest first.  Titles are
+    // matched by a LIKE filter inside the engine, so non-matching records
+    // are never returned to the app; callers should still check matches
+    // themselves since '%' and '_' in text act as wildcards.  The scan
+    // stops early, returning null, if the calling thread is interrupted.
+    public ArrayList<TaskRecord> findByTitle(String text, int pageSize) {
+        ArrayList<TaskRecord> found = new ArrayList<>();
+        if (retrieveLast(Btrieve.Index.INDEX_1) == null)
+            return found;
+        NativeResources natives = new NativeResources();
+        try {
+            BtrieveFilter filter = natives.add(new BtrieveFilter());
+            filter.SetField(TaskTable.TITLE_OFFSET, TaskTable.TITLE_SIZE, Btrieve.DataType.DATA_TYPE_ZSTRING);
+            filter.SetComparison(Btrieve.Comparison.COMPARISON_LIKE);
+            filter.SetACSMode(Btrieve.ACSMode.ACS_MODE_CASE_INSENSITIVE);
+            filter.SetComparisonConstant(("%" + text + "%").getBytes(StandardCharsets.UTF_8));
+            BtrieveBulkRetrieveAttributes attrs = natives.add(new BtrieveBulkRetrieveAttributes());
+            attrs.AddField(TaskTable.ID_OFFSET, TaskTable.RECORD_SIZE);
+            attrs.AddFilter(filter);
+            attrs.SetMaximumRecordCount(pageSize);
+            // Return to the app every so often, even without matches, so a
+            // cancelled search is noticed.
+            attrs.SetMaximumRejectCount(pageSize * 16);
+            BtrieveBulkRetrieveResult result = natives.add(new BtrieveBulkRetrieveResult());
+            byte[] rawbuf = new byte[TaskTable.RECORD_SIZE];
+            boolean skipCurrent = false;
+            while (true) {
+                if (Thread.currentThread().isInterrupted())
+                    return null;
+                attrs.SetSkipCurrentRecord(skipCurrent);
+                Btrieve.StatusCode status = m_handle.BulkRetrievePrevious(attrs, result);
+                if (status != Btrieve.StatusCode.STATUS_CODE_NO_ERROR
+                        && status != Btrieve.StatusCode.STATUS_CODE_END_OF_FILE
+                        && status != Btrieve.StatusCode.STATUS_CODE_REJECT_COUNT_REACHED) {
+                    ZenDBHelper.raise_DbException(status);
+                }
+                int count = result.GetRecordCount();
+                for (int i = 0; i < count; i++) {
+                    result.GetRecord(i, rawbuf);
+                    found.add(getRecord(rawbuf));
+                }
+                if (status == Btrieve.StatusCode.STATUS_CODE_END_OF_FILE
+                        || (status == Btrieve.StatusCode.STATUS_CODE_NO_ERROR && count == 0))
+                    break;
+                skipCurrent = true;
+            }
+            return found;
+        } finally {
+            natives.close();
+        }
+    }
+
+    // Retrieve the newest (highest id) maxCount tasks, newest first.  This
+    // reads at most maxCount records regardless of the size of the table.
+    public ArrayList<TaskRecord> retrieveLatest(int maxCount) {
+        ArrayList<TaskRecord> tasks = new ArrayList<>(maxCount);
+        if (maxCount > 0 && retrieveLast(Btrieve.Index.INDEX_1) != null) {
+            bulkRetrievePrevious(maxCount, false, tasks);
+        }
+        return tasks;
+    }
+
+    // Number of records in the table as reported by the engine.
+    public long getRecordCount() {
+        BtrieveFileInformation info = NativeResources.track(new BtrieveFileInformation());
+        try {
+            getInformation(info);
+            return info.GetRecordCount();
+        } finally {
+            NativeResources.delete(info);
+        }
+    }
+
+    // Fill info with the engine's description of the open file.
+    void getInformation(BtrieveFileInformation info) {
+        Btrieve.StatusCode status = m_handle.GetInformation(info);
+        if (status != Btrieve.StatusCode.STATUS_CODE_NO_ERROR) {
+            ZenDBHelper.raise_DbException(status);
+        }
+    }
+
+    // Read the first id on INDEX_1 from the index alone, without fetching
+    // the record.  Returns 0 if the table is empty.
+    public int keyRetrieveFirstId() {
+        byte[] keybuf = new byte[TaskTable.ID_SIZE];
+        Btrieve.StatusCode status = m_handle.KeyRetrieveFirst(Btrieve.Index.INDEX_1, keybuf);
+        return getKeyId(status, keybuf);
+    }
+
+    // Read the last id on INDEX_1 from the index alone.  Returns 0 if the
+    // table is empty.
+    public int keyRetrieveLastId() {
+        byte[] keybuf = new byte[TaskTable.ID_SIZE];
+        Btrieve.StatusCode status = m_handle.KeyRetrieveLast(Btrieve.Index.INDEX_1, keybuf);
+        return getKeyId(status, keybuf);
+    }
+
+    private int getKeyId(Btrieve.StatusCode status, byte[] keybuf) {
+        if (status == Btrieve.StatusCode.STATUS_CODE_END_OF_FILE)
+            return 0;
+        if (status != Btrieve.StatusCode.STATUS_CODE_NO_ERROR)
+            ZenDBHelper.raise_DbException(status);
+        return ByteBuffer.wrap(keybuf).order(ByteOrder.LITTLE_ENDIAN).getInt();
+    }
+
+    // Every write runs in an exclusive transaction that takes the next
+    // version first.  Writers are thus let through one at a time, so
+    // versions are committed in the order they are handed out: once a
+    // version can be read, so can every change with a lower one.
+    private void beginChange() {
+        Btrieve.StatusCode status = m_client.TransactionBegin(
+                Btrieve.TransactionMode.TRANSACTION_MODE_EXCLUSIVE);
+        if (status != Btrieve.StatusCode.STATUS_CODE_NO_ERROR)
+            ZenDBHelper.raise_DbException(status);
+    }
+
+    // Commit the transaction if done, otherwise roll it back.
+    private void endChange(boolean done) {
+        if (!done) {
+            m_client.TransactionAbort();
+            return;
+        }
+        Btrieve.StatusCode status = m_client.TransactionEnd();
+        if (status != Btrieve.StatusCode.STATUS_CODE_NO_ERROR)
+            ZenDBHelper.raise_DbException(status);
+    }
+
+    // The version for a write: one more than the highest in the table.
+    // Only called inside beginChange/endChange.
+    private int nextVersion() {
+        byte[] keybuf = new byte[TaskTable.VERSION_KEY_SIZE];
+        Btrieve.StatusCode status = m_handle.KeyRetrieveLast(Btrieve.Index.INDEX_2, keybuf);
+        if (status == Btrieve.StatusCode.STATUS_CODE_END_OF_FILE)
+            return 1;
+        if (status != Btrieve.StatusCode.STATUS_CODE_NO_ERROR)
+            ZenDBHelper.raise_DbException(status);
+        return ByteBuffer.wrap(keybuf).order(ByteOrder.LITTLE_ENDIAN).getInt() + 1;
+    }
+
+    // Insert a new TaskRecord object into the task table.  On success task
+    // carries its id and version.
     public void insert(TaskRecord task) {
+        beginChange();
+        boolean done = false;
+        try {
+            task.mVersion = nextVersion();
+            create(task, null);
+            done = true;
+        } finally {
+            endChange(done);
+        }
+    }
+
+    // Insert task with the id and version it has, followed by notes unless
+    // null.  For copying tasks from another table into a mirror.
+    public void insertCopy(TaskRecord task, byte[] notes) {
+        create(task, notes);
+    }
+
+    private void create(TaskRecord task, byte[] notes) {
         // Note: The id field should have been initialized to 0.
         // The database will assign a value.
-        byte[] rawbuf =  m_table.putRecord(task);
+        byte[] rawbuf = withNotes(m_table.putRecord(task), notes);
         Btrieve.StatusCode status = m_handle.RecordCreate(rawbuf);
+        m_table.invalidateStats();
         if (status != Btrieve.StatusCode.STATUS_CODE_NO_ERROR) {
             ZenDBHelper.raise_DbException(status);
         }
+        // The engine returns the record with the assigned id filled in.
+        task.mId = ByteBuffer.wrap(rawbuf).order(ByteOrder.LITTLE_ENDIAN).getInt(TaskTable.ID_OFFSET);
+        TitleTrigramIndex index = m_table.getTitleIndex();
+        if (index != null) {
+            if (task.get_id() != 0) {
+                index.add(m_table.getRecord(rawbuf));
+            } else {
+                // Id unknown; rebuild the index on the next scan.
+                index.clear();
+            }
+        }
+    }
+
+    // Write the title of task, which must have been read from the table,
+    // over the stored one.  If the stored version differs from task's, the
+    // task was changed by someone else after it was read and
+    // DbException.Conflict is thrown; nothing is held locked between the
+    // read and this call.  Returns false if the task no longer exists.  On
+    // success task carries the new version.
+    public boolean update(TaskRecord task) {
+        beginChange();
+        boolean done = false;
+        try {
+            boolean updated = write(task, true, null);
+            done = true;
+            return updated;
+        } finally {
+            endChange(done);
+        }
     }
 
-    // Delete the current record (record that the cursor is positioned on).
-    public void deleteById(int _id) {
+    // Overwrite the title and version of the task with task's id with
+    // task's, whatever is stored.  For copying changes made elsewhere into
+    // a mirror.  Returns false if there is no such task.
+    public boolean replace(TaskRecord task) {
+        return write(task, false, null);
+    }
+
+    // As replace(task), also replacing the notes with notes.
+    public boolean replace(TaskRecord task, byte[] notes) {
+        return write(task, false, notes);
+    }
+
+    // The record for task's fixed part followed by notes, if any.
+    private static byte[] withNotes(byte[] fixed, byte[] notes) {
+        if (notes == null || notes.length == 0)
+            return fixed;
+        byte[] rawbuf = Arrays.copyOf(fixed, fixed.length + notes.length);
+        System.arraycopy(notes, 0, rawbuf, fixed.length, notes.length);
+        return rawbuf;
+    }
+
+    private boolean write(TaskRecord task, boolean checkVersion, byte[] notes) {
+        // Taken before the record is read, since it moves the cursor.
+        int version = checkVersion ? nextVersion() : task.getVersion();
+        byte[] keybuf = new byte[TaskTable.ID_SIZE];
+        ByteBuffer.wrap(keybuf).order(ByteOrder.LITTLE_ENDIAN).putInt(task.get_id());
+        byte[] rawbuf = new byte[TaskTable.RECORD_SIZE];
+        int count = m_handle.RecordRetrieve(Btrieve.Comparison.COMPARISON_EQUAL,
+                                            Btrieve.Index.INDEX_1,
+                                            keybuf, rawbuf, Btrieve.LockMode.LOCK_MODE_NONE);
+        if (readFailed(count)) {
+            Btrieve.StatusCode status = m_handle.GetLastStatusCode();
+            if (status == Btrieve.StatusCode.STATUS_CODE_KEY_VALUE_NOT_FOUND)
+                return false;
+            ZenDBHelper.raise_DbException(status);
+        }
+        // A short read means the task has notes.
+        boolean hasNotes = count < 0;
+        TaskRecord stored = getRecord(rawbuf);
+        if (checkVersion && stored.getVersion() != task.getVersion()) {
+            throw new DbException.Conflict(Btrieve.StatusCode.STATUS_CODE_CONFLICT, String.format(
+                    "Task %d changed: version %d, expected %d",
+                    task.get_id(), stored.getVersion(), task.getVersion()));
+        }
+        TaskRecord updated = new TaskRecord(task.get_id(), task.getTitle());
+        updated.mVersion = version;
+        byte[] newbuf = m_table.putRecord(updated);
+        // The engine itself rejects the write with a conflict status,
+        // raised as DbException.Conflict, if another client changed the
+        // record since the read above.
+        Btrieve.StatusCode status;
+        if (notes != null) {
+            status = m_handle.RecordUpdate(withNotes(newbuf, notes));
+        } else if (hasNotes) {
+            // RecordUpdate would replace the whole record and drop the
+            // notes; rewrite just the fixed part after the key instead.
+            status = m_handle.RecordUpdateChunk(TaskTable.TITLE_OFFSET,
+                    Arrays.copyOfRange(newbuf, TaskTable.TITLE_OFFSET, TaskTable.RECORD_SIZE));
+        } else {
+            status = m_handle.RecordUpdate(newbuf);
+        }
+        if (status != Btrieve.StatusCode.STATUS_CODE_NO_ERROR) {
+            ZenDBHelper.raise_DbException(status);
+        }
+        task.mTitle = updated.getTitle();
+        task.mVersion = updated.getVersion();
+        TitleTrigramIndex index = m_table.getTitleIndex();
+        if (index != null) {
+            index.remove(task.get_id());
+            index.add(m_table.getRecord(newbuf));
+        }
+        return true;
+    }
+
+    // Delete the record with the given id.  Returns false if there is no
+    // such record, for example because it was already deleted.
+    public boolean deleteById(int _id) {
         TaskRecord task = lookupById(_id);
+        if (task == null)
+            return false;
         Btrieve.StatusCode status = m_handle.RecordDelete();
+        m_table.invalidateStats();
         if (status != Btrieve.StatusCode.STATUS_CODE_NO_ERROR) {
             ZenDBHelper.raise_DbException(status);
         }
+        TitleTrigramIndex index = m_table.getTitleIndex();
+        if (index != null)
+            index.remove(_id);
+        return true;
     }
 
-    // Close table when done.  Flushes any pending change operations.
+    // Close table when done.  Flushes any pending change operations and
+    // frees the native handles owned by this cursor.
+    @Override
     public void close() {
-        m_table.getClient().FileClose(m_handle);
+        if (m_handle == null)
+            return;
+        m_client.FileClose(m_handle);
+        NativeResources.delete(m_handle);
+        NativeResources.delete(m_bulkAttrs);
+        NativeResources.delete(m_bulkResult);
+        m_handle = null;
+        m_bulkAttrs = null;
+        m_bulkResult = null;
+        m_fileLock.unlock();
     }
 }
 
@@ -229,6 +1359,12 @@ class TaskRecordIterator implements Iterator<TaskRecord> {
     private TaskRecord m_prefetch;
     private Btrieve.Index m_index;
     private TaskCursor m_cursor;
+    // Descending scan state.
+    private boolean m_descending;
+    private int m_pageSize;
+    private ArrayList<TaskRecord> m_page;
+    private int m_pagePos;
+    private boolean m_atBeginning;
 
     public TaskRecordIterator(boolean useCursorPosition) {
         if (useCursorPosition)
@@ -246,7 +1382,18 @@ class TaskRecordIterator implements Iterator<TaskRecord> {
         m_cursor = cursor;
     }
 
+    // Iterate in descending id order (newest task first), fetching pageSize
+    // records per engine call.
+    public TaskRecordIterator(TaskCursor cursor, int pageSize) {
+        this(cursor);
+        m_descending = true;
+        m_pageSize = pageSize;
+        m_page = new ArrayList<>(pageSize);
+    }
+
     public boolean hasNext() {
+        if (m_descending)
+            return hasPrevious();
         // In order to implement the hasNext() Iterator<> method
         // we have to actually go and retrieve the next record.
         if (m_prefetch == null) {
@@ -264,7 +1411,36 @@ class TaskRecordIterator implements Iterator<TaskRecord> {
         return false;
     }
 
+    private boolean hasPrevious() {
+        if (m_pagePos < m_page.size())
+            return true;
+        if (m_atBeginning)
+            return false;
+        m_page.clear();
+        m_pagePos = 0;
+        if (seekfirst) {
+            seekfirst = false;
+            if (m_cursor.retrieveLast(m_index) == null) {
+                m_atBeginning = true;
+                return false;
+            }
+            m_cursor.bulkRetrievePrevious(m_pageSize, false, m_page);
+        } else {
+            m_cursor.bulkRetrievePrevious(m_pageSize, true, m_page);
+        }
+        if (m_page.isEmpty()) {
+            m_atBeginning = true;
+            return false;
+        }
+        return true;
+    }
+
     public TaskRecord next() {
+        if (m_descending) {
+            if (hasPrevious())
+                return m_page.get(m_pagePos++);
+            throw new NoSuchElementException();
+        }
         if (hasNext()) {
             TaskRecord task = m_prefetch;
             m_prefetch = null;
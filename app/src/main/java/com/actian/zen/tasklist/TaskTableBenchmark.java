@@ -0,0 +1,80 @@
+/*
+ * Copyright 2017 Actian Corporation
+ */
+package com.actian.zen.tasklist;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+
+/**
+ * The TaskTableBenchmark class compares TaskTable creation profiles.  For
+ * each profile a scratch table is created, filled with one insert per
+ * task as the app does, and scanned newest first; the insert and scan
+ * rates and the resulting file size are logged.  Debug builds only.
+ */
+class TaskTableBenchmark {
+    private static final String TAG = "TaskTableBenchmark";
+    private static final int SCAN_PAGE = 64;
+
+    private static final String[] NAMES = { "default", "large", "compact" };
+    private static final TaskTable.CreateProfile[] PROFILES = {
+            TaskTable.DEFAULT_PROFILE, TaskTable.LARGE_PROFILE, TaskTable.COMPACT_PROFILE,
+    };
+
+    // Run every profile with taskCount tasks in scratch files under dir.
+    // Returns the results, one line per profile.
+    static String run(File dir, int taskCount) {
+        StringBuilder report = new StringBuilder();
+        for (int i = 0; i < PROFILES.length; i++) {
+            String line = NAMES[i] + ": " + runProfile(dir, NAMES[i], PROFILES[i], taskCount);
+            Log.v(TAG, line);
+            report.append(line).append('\n');
+        }
+        return report.toString();
+    }
+
+    private static String runProfile(File dir, String name, TaskTable.CreateProfile profile,
+                                     int taskCount) {
+        File file = new File(dir, "benchmark-" + name + ".btr");
+        file.delete();
+        TaskTable table = new TaskTable(file.getAbsolutePath(), null, profile);
+        try {
+            TaskCursor cursor = new TaskCursor(table);
+            long insertMs;
+            long scanMs;
+            int scanned = 0;
+            try {
+                long start = SystemClock.elapsedRealtime();
+                for (int n = 0; n < taskCount; n++) {
+                    cursor.insert(new TaskRecord("Benchmark task " + n));
+                }
+                insertMs = SystemClock.elapsedRealtime() - start;
+
+                start = SystemClock.elapsedRealtime();
+                TaskRecordIterator iter = new TaskRecordIterator(cursor, SCAN_PAGE);
+                while (iter.hasNext()) {
+                    iter.next();
+                    scanned++;
+                }
+                scanMs = SystemClock.elapsedRealtime() - start;
+            } finally {
+                cursor.close();
+            }
+            return String.format("%d inserts in %d ms (%d/s), %d scanned in %d ms (%d/s), %d bytes",
+                                 taskCount, insertMs, perSecond(taskCount, insertMs),
+                                 scanned, scanMs, perSecond(scanned, scanMs), file.length());
+        } catch (DbException ex) {
+            Log.e(TAG, "Benchmark failed: " + name, ex);
+            return "failed: " + ex.getMessage();
+        } finally {
+            table.close();
+            file.delete();
+        }
+    }
+
+    private static long perSecond(long count, long ms) {
+        return ms > 0 ? count * 1000 / ms : count * 1000;
+    }
+}
@@ -0,0 +1,485 @@
+/*
+ * Copyright 2017 Actian Corporation
+ */
+package com.actian.zen.tasklist;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The TaskWriteQueue class holds task inserts, renames, notes and deletes made
+ * while the database server is unavailable, in order, until they can be
+ * replayed.  Queued inserts are given temporary negative ids so they can
+ * be shown and deleted like any other task before they reach the table.
+ *
+ * An insert whose reply is lost may still have reached the table, so
+ * before it is sent the queue records the highest id in the table.  From
+ * then on the insert is in doubt: a replay first looks for a task with
+ * the same title above that id and, if there is one, takes it as the
+ * result instead of inserting a second copy.  Another client inserting
+ * the same title at the same moment could be taken for it, which at worst
+ * leaves one copy where there would have been two.
+ *
+ * A rename carries the version of the task it was made on and is
+ * replayed with TaskCursor.update.  If the task has been changed by
+ * another client since, that change wins and the rename is dropped; a
+ * rename found to have been applied already counts as done.  Once a
+ * rename is replayed, later renames of the same task made on the same
+ * version are moved onto the version it produced.
+ *
+ * New notes are replayed with TaskCursor.setNotes and, like notes saved
+ * directly, replace whatever is stored.  Until then queuedNotes returns
+ * them, so they are what the task shows.
+ *
+ * If given a file, the queue is saved there after every change and
+ * reloaded by the constructor.  A file that cannot be read is kept as
+ * a .bad file rather than written over.
+ *
+ * File layout (big-endian):
+ *   MAGIC, VERSION, write count                      3 x int
+ *   per write: kind (byte), id (int), sent after id (int), title (UTF),
+ *              version (int)
+ *   for notes: then notes length (int), notes (UTF-8 bytes)
+ */
+class TaskWriteQueue {
+    private static final String TAG = "TaskWriteQueue";
+    private static final int MAGIC = 0x54575251;    // "TWRQ"
+    private static final int VERSION = 3;
+
+    private static final byte INSERT = 1;
+    private static final byte DELETE = 2;
+    // An insert deleted again while in doubt; replaying it removes the
+    // task from the table if it got there.
+    private static final byte CANCELLED_INSERT = 3;
+    private static final byte UPDATE = 4;
+    private static final byte NOTES = 5;
+
+    private static class Write {
+        byte kind;
+        // The temporary id of an insert, or the id to rename or delete.
+        final int id;
+        final String title;
+        // For an insert, the highest id in the table before it was sent,
+        // or -1 if it has not been sent yet.
+        int sentAfter = -1;
+        // For a rename or notes, the version of the task it was made on.
+        int version;
+        // For notes, the new text.
+        String notes;
+
+        Write(byte kind, int id, String title) {
+            this.kind = kind;
+            this.id = id;
+            this.title = title;
+        }
+    }
+
+    private final ArrayList<Write> mWrites = new ArrayList<>();
+    private int mNextTempId = -1;
+    private final File mFile;
+    // Set if an unreadable file could not be moved aside; the queue is
+    // then kept in memory only.
+    private boolean mKeepFile;
+
+    TaskWriteQueue() {
+        mFile = null;
+    }
+
+    TaskWriteQueue(File file) {
+        mFile = file;
+        load();
+    }
+
+    synchronized TaskRecord queueInsert(String title) {
+        TaskRecord task = new TaskRecord(mNextTempId--, title);
+        mWrites.add(new Write(INSERT, task.get_id(), title));
+        save();
+        return task;
+    }
+
+    // Queue renaming task, which must be in the table, to title.
+    synchronized void queueUpdate(TaskRecord task, String title) {
+        Write write = new Write(UPDATE, task.get_id(), title);
+        write.version = task.getVersion();
+        mWrites.add(write);
+        save();
+    }
+
+    // Queue replacing the notes of task, which must be in the table.
+    synchronized void queueNotes(TaskRecord task, String notes) {
+        Write write = new Write(NOTES, task.get_id(), null);
+        write.version = task.getVersion();
+        write.notes = notes;
+        mWrites.add(write);
+        save();
+    }
+
+    // The last notes queued for the task with the given id, or null if
+    // there are none.
+    synchronized String queuedNotes(int id) {
+        for (int i = mWrites.size() - 1; i >= 0; i--) {
+            Write write = mWrites.get(i);
+            if (write.kind == NOTES && write.id == id)
+                return write.notes;
+        }
+        return null;
+    }
+
+    synchronized void queueDelete(int id) {
+        if (id < 0) {
+            // Not in the table yet; drop the queued insert instead, unless
+            // it may have got there.
+            for (int i = 0; i < mWrites.size(); i++) {
+                Write write = mWrites.get(i);
+                if (write.kind == INSERT && write.id == id) {
+                    if (write.sentAfter < 0)
+                        mWrites.remove(i);
+                    else
+                        write.kind = CANCELLED_INSERT;
+                    save();
+                    return;
+                }
+            }
+            return;
+        }
+        mWrites.add(new Write(DELETE, id, null));
+        save();
+    }
+
+    synchronized boolean isEmpty() {
+        return mWrites.isEmpty();
+    }
+
+    synchronized int size() {
+        return mWrites.size();
+    }
+
+    // The given task list (newest first) as it will look once the queued
+    // writes have been applied.
+    synchronized ArrayList<TaskRecord> applyTo(List<TaskRecord> tasks) {
+        ArrayList<TaskRecord> result = new ArrayList<>(tasks.size() + mWrites.size());
+        for (int i = mWrites.size() - 1; i >= 0; i--) {
+            Write write = mWrites.get(i);
+            if (write.kind == INSERT)
+                result.add(new TaskRecord(write.id, write.title));
+        }
+        for (TaskRecord task : tasks) {
+            if (!isDeleted(task.get_id()))
+                result.add(renamed(task));
+        }
+        return result;
+    }
+
+    // task with the queued renames applied.  It keeps the version read,
+    // which is the one further renames must be made on.
+    private TaskRecord renamed(TaskRecord task) {
+        for (Write write : mWrites) {
+            if (write.kind == UPDATE && write.id == task.get_id()) {
+                TaskRecord copy = new TaskRecord(task.get_id(), write.title);
+                copy.mVersion = task.getVersion();
+                task = copy;
+            }
+        }
+        return task;
+    }
+
+    // Move the renames queued after done, which were made on the version
+    // done was, onto version, the one done left the task with.
+    private void rebase(Write done, int version) {
+        for (Write write : mWrites) {
+            if (write != done && write.kind == UPDATE && write.id == done.id
+                    && write.version == done.version)
+                write.version = version;
+        }
+    }
+
+    private boolean isDeleted(int id) {
+        for (Write write : mWrites) {
+            if (write.kind == DELETE && write.id == id)
+                return true;
+        }
+        return false;
+    }
+
+    // A file that cannot be read is moved aside to a .bad file, never
+    // overwritten, and the queue starts empty.
+    private void load() {
+        if (!mFile.exists())
+            return;
+        try {
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(mFile)));
+            try {
+                if (in.readInt() != MAGIC)
+                    throw new IOException("Not a write queue");
+                // Version 2 had no notes.
+                int fileVersion = in.readInt();
+                if (fileVersion != 2 && fileVersion != VERSION)
+                    throw new IOException("Unknown write queue version " + fileVersion);
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    byte kind = in.readByte();
+                    int id = in.readInt();
+                    int sentAfter = in.readInt();
+                    String title = in.readUTF();
+                    Write write = new Write(kind, id, kind == DELETE ? null : title);
+                    write.sentAfter = sentAfter;
+                    write.version = in.readInt();
+                    if (kind == NOTES)
+                        write.notes = readNotes(in);
+                    mWrites.add(write);
+                    if (id < 0)
+                        mNextTempId = Math.min(mNextTempId, id - 1);
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException ex) {
+            mWrites.clear();
+            mNextTempId = -1;
+            File bad = new File(mFile.getPath() + "." + System.currentTimeMillis() + ".bad");
+            if (mFile.renameTo(bad))
+                Log.e(TAG, "Reading write queue failed, kept as " + bad.getName(), ex);
+            else {
+                Log.e(TAG, "Reading write queue failed, cannot rename " + mFile, ex);
+                mKeepFile = true;
+            }
+        }
+    }
+
+    // Notes may be longer than writeUTF allows, so they are stored as a
+    // length and UTF-8 bytes.
+    private static String readNotes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > TaskTable.MAX_NOTES_SIZE)
+            throw new IOException("Invalid notes length " + length);
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Written to a temporary file first and renamed into place, so a
+    // reader never sees a partial file.
+    private void save() {
+        if (mFile == null || mKeepFile)
+            return;
+        File tmpfile = new File(mFile.getPath() + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmpfile)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(mWrites.size());
+                for (Write write : mWrites) {
+                    out.writeByte(write.kind);
+                    out.writeInt(write.id);
+                    out.writeInt(write.sentAfter);
+                    out.writeUTF(write.title != null ? write.title : "");
+                    out.writeInt(write.version);
+                    if (write.kind == NOTES) {
+                        byte[] bytes = write.notes.getBytes(StandardCharsets.UTF_8);
+                        out.writeInt(bytes.length);
+                        out.write(bytes);
+                    }
+                }
+            } finally {
+                out.close();
+            }
+            if (!tmpfile.renameTo(mFile))
+                throw new IOException("Cannot rename " + tmpfile + " to " + mFile);
+        } catch (IOException ex) {
+            tmpfile.delete();
+            Log.w(TAG, "Saving write queue failed", ex);
+        }
+    }
+
+    // Replay the queued writes in order.  Stops at the first failure and
+    // rethrows it, leaving that write and the ones after it queued.
+    void flush(DbRetry retry) {
+        flush(retry, null);
+    }
+
+    // As flush(retry), also applying each replayed write to mirror, a
+    // local copy of the table, with the id the table assigned.
+    void flush(DbRetry retry, TaskCursor mirror) {
+        while (true) {
+            final Write write;
+            final byte kind;
+            synchronized (this) {
+                if (mWrites.isEmpty())
+                    return;
+                write = mWrites.get(0);
+                kind = write.kind;
+            }
+            if (kind == INSERT) {
+                TaskRecord task = replayInsert(retry, write);
+                boolean cancelled;
+                synchronized (this) {
+                    cancelled = write.kind == CANCELLED_INSERT;
+                }
+                if (task != null && cancelled)
+                    delete(retry, mirror, task.get_id());
+                else if (task != null && mirror != null)
+                    TaskMirror.insertIfMissing(mirror, task);
+            } else if (kind == UPDATE) {
+                TaskRecord task = replayUpdate(retry, write);
+                if (task != null) {
+                    if (mirror != null)
+                        mirror.replace(task);
+                    synchronized (this) {
+                        rebase(write, task.getVersion());
+                    }
+                }
+            } else if (kind == NOTES) {
+                TaskRecord task = replayNotes(retry, write);
+                if (task != null && mirror != null)
+                    mirror.replace(task, write.notes.getBytes(StandardCharsets.UTF_8));
+            } else if (kind == CANCELLED_INSERT) {
+                TaskRecord task = findInserted(retry, write);
+                if (task != null)
+                    delete(retry, mirror, task.get_id());
+            } else {
+                delete(retry, mirror, write.id);
+            }
+            synchronized (this) {
+                mWrites.remove(write);
+                save();
+            }
+        }
+    }
+
+    private static void delete(DbRetry retry, TaskCursor mirror, final int id) {
+        retry.execute(new DbRetry.Operation<Boolean>() {
+            @Override
+            public Boolean run(TaskCursor cursor) {
+                return cursor.deleteById(id);
+            }
+        }, true);
+        if (mirror != null)
+            mirror.deleteById(id);
+    }
+
+    // Insert write's task unless an earlier attempt already did, and
+    // return it with the id the table assigned.  Returns null if the
+    // insert was dropped from the queue before it could be sent.
+    private TaskRecord replayInsert(DbRetry retry, Write write) {
+        TaskRecord found = findInserted(retry, write);
+        if (found != null) {
+            Log.v(TAG, String.format("Insert of %s had reached the table as %d",
+                                     write.title, found.get_id()));
+            return found;
+        }
+        int lastId = retry.execute(new DbRetry.Operation<Integer>() {
+            @Override
+            public Integer run(TaskCursor cursor) {
+                return cursor.keyRetrieveLastId();
+            }
+        }, true);
+        synchronized (this) {
+            if (!mWrites.contains(write))
+                return null;
+            write.sentAfter = lastId;
+            save();
+        }
+        final TaskRecord task = new TaskRecord(write.title);
+        retry.execute(new DbRetry.Operation<Void>() {
+            @Override
+            public Void run(TaskCursor cursor) {
+                cursor.insert(task);
+                return null;
+            }
+        }, false);
+        // The mirror must get the table's id; with 0 it would assign one
+        // of its own and the next pull would add the task a second time.
+        if (task.get_id() == 0)
+            throw new IllegalStateException("Insert of " + write.title + " returned no id");
+        return task;
+    }
+
+    // Rename the task as write asks and return it as stored, or null if
+    // the task is gone or was changed by another client first.
+    private static TaskRecord replayUpdate(DbRetry retry, final Write write) {
+        final TaskRecord task = new TaskRecord(write.id, write.title);
+        task.mVersion = write.version;
+        try {
+            boolean updated = retry.execute(new DbRetry.Operation<Boolean>() {
+                @Override
+                public Boolean run(TaskCursor cursor) {
+                    return cursor.update(task);
+                }
+            }, false);
+            return updated ? task : null;
+        } catch (DbException.Conflict ex) {
+            // Either an earlier attempt whose reply was lost, or a change
+            // by another client.
+            TaskRecord current = retry.execute(new DbRetry.Operation<TaskRecord>() {
+                @Override
+                public TaskRecord run(TaskCursor cursor) {
+                    TaskRecord found = cursor.lookupById(write.id);
+                    if (found != null && found.getVersion() > write.version
+                            && found.getTitle().equals(cursor.storedTitle(write.title)))
+                        return found;
+                    return null;
+                }
+            }, true);
+            if (current == null)
+                Log.v(TAG, String.format("Rename of %d to %s dropped: %s",
+                                         write.id, write.title, ex.getMessage()));
+            return current;
+        }
+    }
+
+    // Replace the notes of the task as write asks and return it as stored,
+    // or null if the task is gone.  If the task was still on the version
+    // the notes were made on, renames queued after them on that version
+    // are moved onto the new one; the task is read just before the notes
+    // are written, so a change by another client in between can be missed.
+    private TaskRecord replayNotes(DbRetry retry, final Write write) {
+        final int[] before = new int[1];
+        TaskRecord task = retry.execute(new DbRetry.Operation<TaskRecord>() {
+            @Override
+            public TaskRecord run(TaskCursor cursor) {
+                TaskRecord found = cursor.lookupById(write.id);
+                if (found == null)
+                    return null;
+                before[0] = found.getVersion();
+                return cursor.setNotes(write.id, write.notes);
+            }
+        }, true);
+        if (task == null) {
+            Log.v(TAG, String.format("Notes of %d dropped: the task is gone", write.id));
+            return null;
+        }
+        if (before[0] == write.version) {
+            synchronized (this) {
+                rebase(write, task.getVersion());
+            }
+        }
+        return task;
+    }
+
+    // The task an earlier attempt to send write inserted, or null if it
+    // was never sent or did not reach the table.
+    private static TaskRecord findInserted(DbRetry retry, final Write write) {
+        if (write.sentAfter < 0)
+            return null;
+        return retry.execute(new DbRetry.Operation<TaskRecord>() {
+            @Override
+            public TaskRecord run(TaskCursor cursor) {
+                return cursor.findInsertedAfter(write.sentAfter, write.title);
+            }
+        }, true);
+    }
+}
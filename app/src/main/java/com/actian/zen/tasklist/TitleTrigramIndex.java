@@ -0,0 +1,171 @@
+/*
+ * Copyright 2017 Actian Corporation
+ */
+package com.actian.zen.tasklist;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Locale;
+
+/**
+ * The TitleTrigramIndex class is an in-memory inverted index from every
+ * three-character sequence of a lower-cased task title to the ids of the
+ * tasks containing it.  A substring query of three or more characters is
+ * answered by intersecting the posting lists of its trigrams and checking
+ * the few remaining candidates, instead of testing every title.
+ *
+ * The index is filled from a full table scan (see markComplete) and kept
+ * up to date by TaskCursor.insert and deleteById.  It is thread safe.
+ */
+class TitleTrigramIndex {
+    static final int GRAM = 3;
+
+    // Growable list of task ids.  Ids are appended in scan order and
+    // sorted lazily before the list is searched.
+    private static class IdList {
+        int[] ids = new int[4];
+        int size;
+        boolean sorted = true;
+
+        void add(int id) {
+            // All trigrams of one title are added together, so a repeated
+            // trigram shows up as the same id at the end of the list.
+            if (size > 0 && ids[size - 1] == id)
+                return;
+            if (size == ids.length)
+                ids = Arrays.copyOf(ids, size * 2);
+            if (size > 0 && ids[size - 1] > id)
+                sorted = false;
+            ids[size++] = id;
+        }
+
+        void sort() {
+            if (!sorted) {
+                Arrays.sort(ids, 0, size);
+                // Drop duplicates that were not adjacent when added.
+                int n = 0;
+                for (int i = 0; i < size; i++) {
+                    if (n == 0 || ids[n - 1] != ids[i])
+                        ids[n++] = ids[i];
+                }
+                size = n;
+                sorted = true;
+            }
+        }
+
+        boolean remove(int id) {
+            sort();
+            int pos = Arrays.binarySearch(ids, 0, size, id);
+            if (pos < 0)
+                return false;
+            System.arraycopy(ids, pos + 1, ids, pos, size - pos - 1);
+            size--;
+            return true;
+        }
+    }
+
+    private final HashMap<Long, IdList> mPostings = new HashMap<>();
+    private final HashMap<Integer, TaskRecord> mTasks = new HashMap<>();
+    private boolean mComplete = false;
+
+    synchronized void add(TaskRecord task) {
+        int id = task.get_id();
+        TaskRecord old = mTasks.put(id, task);
+        if (old != null)
+            removePostings(old);
+        String title = task.getTitle().toLowerCase(Locale.ROOT);
+        for (int i = 0; i + GRAM <= title.length(); i++) {
+            Long gram = trigram(title, i);
+            IdList list = mPostings.get(gram);
+            if (list == null) {
+                list = new IdList();
+                mPostings.put(gram, list);
+            }
+            list.add(id);
+        }
+    }
+
+    synchronized void remove(int id) {
+        TaskRecord old = mTasks.remove(id);
+        if (old != null)
+            removePostings(old);
+    }
+
+    // Forget everything; the index must be filled by a new scan before it
+    // answers queries again.
+    synchronized void clear() {
+        mPostings.clear();
+        mTasks.clear();
+        mComplete = false;
+    }
+
+    // Every task in the table has been added.
+    synchronized void markComplete() {
+        mComplete = true;
+    }
+
+    synchronized boolean isComplete() {
+        return mComplete;
+    }
+
+    // Tasks whose lower-cased title contains lowerQuery, newest first.
+    // Returns null if the index cannot answer the query: it is not complete
+    // or the query is shorter than a trigram.
+    synchronized ArrayList<TaskRecord> search(String lowerQuery) {
+        if (!mComplete || lowerQuery.length() < GRAM)
+            return null;
+        int grams = lowerQuery.length() - GRAM + 1;
+        IdList[] lists = new IdList[grams];
+        for (int i = 0; i < grams; i++) {
+            IdList list = mPostings.get(trigram(lowerQuery, i));
+            if (list == null)
+                return new ArrayList<>();
+            list.sort();
+            lists[i] = list;
+        }
+        // Intersect starting from the shortest posting list.
+        Arrays.sort(lists, new Comparator<IdList>() {
+            @Override
+            public int compare(IdList a, IdList b) {
+                return a.size - b.size;
+            }
+        });
+        int[] candidates = Arrays.copyOf(lists[0].ids, lists[0].size);
+        int count = candidates.length;
+        for (int l = 1; l < lists.length && count > 0; l++) {
+            IdList list = lists[l];
+            if (list == lists[l - 1])
+                continue;
+            int n = 0;
+            for (int i = 0; i < count; i++) {
+                if (Arrays.binarySearch(list.ids, 0, list.size, candidates[i]) >= 0)
+                    candidates[n++] = candidates[i];
+            }
+            count = n;
+        }
+        // Trigrams do not record positions, so check each candidate.
+        ArrayList<TaskRecord> found = new ArrayList<>(count);
+        for (int i = count - 1; i >= 0; i--) {
+            TaskRecord task = mTasks.get(candidates[i]);
+            if (task.getTitle().toLowerCase(Locale.ROOT).contains(lowerQuery))
+                found.add(task);
+        }
+        return found;
+    }
+
+    private void removePostings(TaskRecord task) {
+        String title = task.getTitle().toLowerCase(Locale.ROOT);
+        for (int i = 0; i + GRAM <= title.length(); i++) {
+            Long gram = trigram(title, i);
+            IdList list = mPostings.get(gram);
+            if (list != null && list.remove(task.get_id()) && list.size == 0)
+                mPostings.remove(gram);
+        }
+    }
+
+    private static Long trigram(String s, int i) {
+        return ((long) s.charAt(i) << 32) | ((long) s.charAt(i + 1) << 16) | s.charAt(i + 2);
+    }
+}
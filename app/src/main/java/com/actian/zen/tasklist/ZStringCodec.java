@@ -0,0 +1,183 @@
+/*
+ * Copyright 2017 Actian Corporation
+ */
+package com.actian.zen.tasklist;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The ZStringCodec class converts between Strings and the null-terminated
+ * UTF-8 fields (ZStrings) of task records.  It is plain Java and does not
+ * load the Zen library.
+ */
+class ZStringCodec {
+
+    // Charset decoders are not thread safe but are expensive to create, so
+    // each thread keeps its own for the lifetime of the thread.
+    private static final ThreadLocal<CharsetDecoder> sDecoder = new ThreadLocal<CharsetDecoder>() {
+        @Override
+        protected CharsetDecoder initialValue() {
+            return StandardCharsets.UTF_8.newDecoder();
+        }
+    };
+
+    // Helper function to decode a UTF-8 encoded string that
+    // has been retrieved from a record.
+    private static String decodeString(byte[] buf, int offset, int length) {
+        // Fast path: pure ASCII bytes map one-to-one onto chars, so the
+        // String can be built straight from the record bytes.
+        int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            if (buf[i] < 0) {
+                return decodeUTF8(buf, offset, length);
+            }
+        }
+        return new String(buf, offset, length, StandardCharsets.US_ASCII);
+    }
+
+    private static String decodeUTF8(byte[] buf, int offset, int length) {
+        CharsetDecoder decoder = sDecoder.get();
+        try {
+            return decoder.decode(ByteBuffer.wrap(buf, offset, length)).toString();
+        }
+        catch (CharacterCodingException ex) {
+            throw new RuntimeException ("decodeString: CharCodingException");
+        }
+    }
+
+    // Helper function to encode a String in UTF-8 directly into a record
+    // buffer.  At most 'length' bytes are written starting at the current
+    // position of 'out', and encoding stops at the last whole code point
+    // that fits.  Unpaired surrogates are written as '?'.  Returns the
+    // number of chars of in_str that were encoded.
+    private static int encodeString(String in_str, ByteBuffer out, int length) {
+        int n = in_str.length();
+        int room = length;
+        int i = 0;
+        while (i < n) {
+            char ch = in_str.charAt(i);
+            if (ch < 0x80) {
+                if (room < 1)
+                    break;
+                out.put((byte) ch);
+                room -= 1;
+                i += 1;
+            } else if (ch < 0x800) {
+                if (room < 2)
+                    break;
+                out.put((byte) (0xC0 | (ch >> 6)));
+                out.put((byte) (0x80 | (ch & 0x3F)));
+                room -= 2;
+                i += 1;
+            } else if (Character.isHighSurrogate(ch) && i + 1 < n
+                       && Character.isLowSurrogate(in_str.charAt(i + 1))) {
+                if (room < 4)
+                    break;
+                int cp = Character.toCodePoint(ch, in_str.charAt(i + 1));
+                out.put((byte) (0xF0 | (cp >> 18)));
+                out.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+                out.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+                out.put((byte) (0x80 | (cp & 0x3F)));
+                room -= 4;
+                i += 2;
+            } else if (Character.isSurrogate(ch)) {
+                if (room < 1)
+                    break;
+                out.put((byte) '?');
+                room -= 1;
+                i += 1;
+            } else {
+                if (room < 3)
+                    break;
+                out.put((byte) (0xE0 | (ch >> 12)));
+                out.put((byte) (0x80 | ((ch >> 6) & 0x3F)));
+                out.put((byte) (0x80 | (ch & 0x3F)));
+                room -= 3;
+                i += 1;
+            }
+        }
+        return i;
+    }
+
+    // Number of bytes needed to store str in UTF-8.  Unpaired surrogates are
+    // counted as one byte, the '?' that String.getBytes would substitute.
+    static int utf8Length(String str) {
+        int count = 0;
+        for (int i = 0, n = str.length(); i < n; i++) {
+            char ch = str.charAt(i);
+            if (ch < 0x80) {
+                count += 1;
+            } else if (ch < 0x800) {
+                count += 2;
+            } else if (Character.isHighSurrogate(ch) && i + 1 < n
+                       && Character.isLowSurrogate(str.charAt(i + 1))) {
+                count += 4;
+                i++;
+            } else if (Character.isSurrogate(ch)) {
+                count += 1;
+            } else {
+                count += 3;
+            }
+        }
+        return count;
+    }
+
+    //
+    // Helper function to extract a ZString from the record buffer.
+    static String getZString(ByteBuffer rec, int offset, int length) {
+        byte[] buf;
+        int start;
+        if (rec.hasArray()) {
+            buf = rec.array();
+            start = rec.arrayOffset() + offset;
+        } else {
+            buf = new byte[length];
+            ByteBuffer in_bb = rec.duplicate();
+            in_bb.position(offset);
+            in_bb.get(buf);
+            start = 0;
+        }
+        // Locate null terminator.  Note: length is a maximum value -- the
+        // actual length of the string may be smaller.
+        int strlen = 0;
+        while (strlen < length && buf[start + strlen] != 0) {
+            strlen++;
+        }
+
+        String out_s = decodeString(buf, start, strlen);
+        // update position to end of field.
+        rec.position(offset+length);
+        return out_s;
+    }
+
+    //
+    // Helper function to pack a ZString into a record buffer at the specified
+    // offset.
+    static void putZString (ByteBuffer rec, int offset, int length, String str) {
+        if (str == null)
+            str = "";
+        rec.position(offset);
+        // Leave room for the null terminator.
+        if (encodeString(str, rec, length - 1) == str.length()) {
+            rec.put((byte) 0);
+        } else {
+            // **exc** invalid length for field.
+            int remaining = utf8Length(str);
+            throw new RuntimeException("Invalid field length: " + remaining + " >= " + length);
+        }
+    }
+
+    //
+    // Same as putZString, but a string that is too long for the field is
+    // truncated at a code point boundary instead of raising an exception.
+    static void putZStringTruncated (ByteBuffer rec, int offset, int length, String str) {
+        if (str == null)
+            str = "";
+        rec.position(offset);
+        encodeString(str, rec, length - 1);
+        rec.put((byte) 0);
+    }
+}
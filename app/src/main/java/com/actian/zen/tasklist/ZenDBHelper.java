@@ -14,100 +14,69 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.ByteBuffer;
-import java.nio.CharBuffer;
-import java.nio.charset.Charset;
-import java.nio.charset.CharsetDecoder;
-import java.nio.charset.CharsetEncoder;
-import java.nio.charset.CharacterCodingException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
 
 public class ZenDBHelper {
 
     public static void raise_DbException(Btrieve.StatusCode status, String message) {
         String exc_msg = String.format("%s: %s", message, Btrieve.StatusCodeToString(status));
-        RuntimeException exc = new RuntimeException(exc_msg);
-        throw exc;
+        throw newDbException(status, exc_msg);
     }
 
     public static void raise_DbException(Btrieve.StatusCode status) {
         String exc_msg = Btrieve.StatusCodeToString(status);
-        RuntimeException exc = new RuntimeException(exc_msg);
-        throw exc;
+        throw newDbException(status, exc_msg);
     }
 
-    // Helper function to decode a UTF-8 encoded string that
-    // has been retrieved from a record.
-    private static String decodeString(ByteBuffer in_bb) {
-        Charset charset = Charset.forName("UTF-8");
-        CharsetDecoder decoder = charset.newDecoder();
-        CharBuffer outcb;
-        try {
-            outcb = decoder.decode (in_bb);
-        }
-        catch (CharacterCodingException ex) {
-            throw new RuntimeException ("encodeString: CharCodingException");
-        }
-        String out_s = outcb.toString();
-        return out_s;
-    }
-
-    // Helper function to encode a String in UTF-8 so that it can be
-    // stored in a database record.
-    private static ByteBuffer encodeString(String in_str) {
-        CharBuffer cb = CharBuffer.wrap(in_str);
-        Charset charset = Charset.forName("UTF-8");
-        CharsetEncoder encoder = charset.newEncoder();
-        ByteBuffer outbb;
-        try {
-            outbb = encoder.encode (cb);
-        }
-        catch (CharacterCodingException ex) {
-            throw new RuntimeException ("encodeString: CharCodingException");
-        }
-        return outbb;
-    }
-
-    //
-    // Helper function to extract a ZString from the record buffer.
-    protected static String getZString(ByteBuffer rec, int offset, int length) {
-        ByteBuffer in_bb = rec.asReadOnlyBuffer();
-        in_bb.position(offset);
-        in_bb.limit(offset+length);
-        // Locate null terminator.  Note: length is a maximum value -- the
-        // actual length of the string may be smaller.
-        while (in_bb.hasRemaining()) {
-            byte ch = in_bb.get();
-            if (ch == 0)
-                break;
-        }
-        int newlimit = in_bb.position();
-        newlimit -= 1;
-        in_bb.position(offset);
-        in_bb.limit(newlimit);
-
-        String out_s = decodeString(in_bb);
-        // update position to end of field.
-        rec.position(offset+length);
-        return out_s;
-    }
-
-    //
-    // Helper function to pack a ZString into a record buffer at the specified
-    // offset.
-    protected static void putZString (ByteBuffer rec, int offset, int length, String str) {
-        if (str == null)
-            str = "";
-        ByteBuffer enc = encodeString(str);
-        //enc.put((byte) 0);
-        int remaining = enc.remaining();
-        if (remaining < length) {
-            rec.position(offset);
-            rec.put(enc);
-            rec.put((byte) 0);
-        } else {
-            // **exc** invalid length for field.
-            throw new RuntimeException("Invalid field length: " + remaining + " >= " + length);
-        }
+    private static final Set<Btrieve.StatusCode> NOT_FOUND_CODES = new HashSet<>(Arrays.asList(
+            Btrieve.StatusCode.STATUS_CODE_KEY_VALUE_NOT_FOUND,
+            Btrieve.StatusCode.STATUS_CODE_END_OF_FILE,
+            Btrieve.StatusCode.STATUS_CODE_FILE_NOT_FOUND));
+
+    private static final Set<Btrieve.StatusCode> LOCKED_CODES = new HashSet<>(Arrays.asList(
+            Btrieve.StatusCode.STATUS_CODE_RECORD_INUSE,
+            Btrieve.StatusCode.STATUS_CODE_FILE_INUSE,
+            Btrieve.StatusCode.STATUS_CODE_DEAD_LOCK,
+            Btrieve.StatusCode.STATUS_CODE_LOCKERROR,
+            Btrieve.StatusCode.STATUS_CODE_INCOMPATIBLE_LOCK_TYPE,
+            Btrieve.StatusCode.STATUS_CODE_NO_SYSTEM_LOCKS_AVAILABLE));
+
+    private static final Set<Btrieve.StatusCode> CONNECTION_CODES = new HashSet<>(Arrays.asList(
+            Btrieve.StatusCode.STATUS_CODE_COMMUNICATIONS_ERROR,
+            Btrieve.StatusCode.STATUS_CODE_SESSION_NO_LONGER_VALID,
+            Btrieve.StatusCode.STATUS_CODE_INTF_COMM_ERROR,
+            Btrieve.StatusCode.STATUS_CODE_MKDE_SHUTTING_DOWN,
+            Btrieve.StatusCode.STATUS_CODE_MK_TIMEOUT_ERROR,
+            Btrieve.StatusCode.STATUS_CODE_MK_INVALID_SESSION,
+            Btrieve.StatusCode.STATUS_CODE_MK_SERVER_NOT_FOUND,
+            Btrieve.StatusCode.STATUS_CODE_MK_CANT_FIND_ENGINE,
+            Btrieve.StatusCode.STATUS_CODE_MK_CLOSED_ERROR,
+            Btrieve.StatusCode.STATUS_CODE_MK_IDS_CONNECT_FAILURE,
+            Btrieve.StatusCode.STATUS_CODE_NL_FAILURE,
+            Btrieve.StatusCode.STATUS_CODE_NL_NAME_NOT_FOUND,
+            Btrieve.StatusCode.STATUS_CODE_NL_NO_AVAILABLE_TRANSPORT,
+            Btrieve.StatusCode.STATUS_CODE_NL_CONNECTION_FAILURE,
+            Btrieve.StatusCode.STATUS_CODE_NL_INVALID_SESSION,
+            Btrieve.StatusCode.STATUS_CODE_NL_NOT_CONNECTED,
+            Btrieve.StatusCode.STATUS_CODE_NL_SEND_FAILURE,
+            Btrieve.StatusCode.STATUS_CODE_NL_RECEIVE_FAILURE,
+            Btrieve.StatusCode.STATUS_CODE_NL_TRANSPORT_FAILURE,
+            Btrieve.StatusCode.STATUS_CODE_NL_IDS_SEND_FAILURE,
+            Btrieve.StatusCode.STATUS_CODE_NL_IDS_RCV_FAILURE));
+
+    // Build the DbException subclass that matches the status code.
+    public static DbException newDbException(Btrieve.StatusCode status, String message) {
+        if (NOT_FOUND_CODES.contains(status))
+            return new DbException.NotFound(status, message);
+        if (status == Btrieve.StatusCode.STATUS_CODE_CONFLICT)
+            return new DbException.Conflict(status, message);
+        if (LOCKED_CODES.contains(status))
+            return new DbException.Locked(status, message);
+        if (CONNECTION_CODES.contains(status))
+            return new DbException.Connection(status, message);
+        return new DbException(status, message);
     }
 
     // Extract Zen configuration file zendb.config from assets.
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2017 Actian Corporation
+ */
+package com.actian.zen.tasklist;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CircuitBreakerTest {
+    // Long enough that an open breaker never half-opens during a test.
+    private static final long FOREVER_MS = Long.MAX_VALUE / 2;
+
+    private static DbException connectionLost() {
+        return new DbException.Connection(null, "connection lost");
+    }
+
+    @Test
+    public void opensAfterThresholdConnectionFailures() {
+        CircuitBreaker breaker = new CircuitBreaker(3, FOREVER_MS);
+        for (int i = 0; i < 2; i++) {
+            assertTrue(breaker.allowRequest());
+            breaker.recordFailure(connectionLost());
+            assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        }
+        assertTrue(breaker.allowRequest());
+        breaker.recordFailure(connectionLost());
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest());
+        assertFalse(breaker.isAvailable());
+    }
+
+    @Test
+    public void successResetsTheCount() {
+        CircuitBreaker breaker = new CircuitBreaker(2, FOREVER_MS);
+        breaker.recordFailure(connectionLost());
+        breaker.recordSuccess();
+        breaker.recordFailure(connectionLost());
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void otherFailuresCountAsAnAnswer() {
+        CircuitBreaker breaker = new CircuitBreaker(2, FOREVER_MS);
+        breaker.recordFailure(connectionLost());
+        breaker.recordFailure(new DbException.Conflict(null, "changed"));
+        breaker.recordFailure(connectionLost());
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void halfOpenLetsOneProbeThrough() {
+        CircuitBreaker breaker = new CircuitBreaker(1, 0);
+        breaker.recordFailure(connectionLost());
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertTrue(breaker.isAvailable());
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertTrue(breaker.allowRequest());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest());
+        assertFalse(breaker.isAvailable());
+    }
+
+    @Test
+    public void probeSuccessCloses() {
+        CircuitBreaker breaker = new CircuitBreaker(1, 0);
+        breaker.recordFailure(connectionLost());
+        assertTrue(breaker.allowRequest());
+        breaker.recordSuccess();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.allowRequest());
+    }
+
+    @Test
+    public void probeFailureReopens() {
+        CircuitBreaker breaker = new CircuitBreaker(3, 0);
+        for (int i = 0; i < 3; i++)
+            breaker.recordFailure(connectionLost());
+        assertTrue(breaker.allowRequest());
+        // A single failure of the probe is enough.
+        breaker.recordFailure(connectionLost());
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    @Test
+    public void probeWithoutOutcomeIsNotLost() {
+        CircuitBreaker breaker = new CircuitBreaker(1, 0);
+        breaker.recordFailure(connectionLost());
+        assertTrue(breaker.allowRequest());
+        breaker.recordNoOutcome();
+        // The next request becomes the probe.
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertTrue(breaker.allowRequest());
+    }
+
+    @Test
+    public void noOutcomeOutsideAProbeChangesNothing() {
+        CircuitBreaker breaker = new CircuitBreaker(1, FOREVER_MS);
+        breaker.recordNoOutcome();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        breaker.recordFailure(connectionLost());
+        breaker.recordNoOutcome();
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest());
+    }
+
+    @Test
+    public void tripOpensAtOnce() {
+        CircuitBreaker breaker = new CircuitBreaker(3, FOREVER_MS);
+        breaker.trip();
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest());
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2017 Actian Corporation
+ */
+package com.actian.zen.tasklist;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DbRetryTest {
+
+    @Test
+    public void locksAreRetried() {
+        DbException ex = new DbException.Locked(null, "in use");
+        assertTrue(DbRetry.isTransient(ex));
+        assertTrue(DbRetry.isRetryable(ex, true));
+        assertTrue(DbRetry.isRetryable(ex, false));
+    }
+
+    @Test
+    public void lostConnectionsAreRetriedOnlyWhenIdempotent() {
+        DbException ex = new DbException.Connection(null, "connection lost");
+        assertTrue(DbRetry.isTransient(ex));
+        assertTrue(DbRetry.isRetryable(ex, true));
+        // The write may have happened before the reply was lost.
+        assertFalse(DbRetry.isRetryable(ex, false));
+    }
+
+    @Test
+    public void unavailableIsNeverRetried() {
+        DbException ex = new DbException.Unavailable(null, "breaker open");
+        assertFalse(DbRetry.isRetryable(ex, true));
+        assertFalse(DbRetry.isRetryable(ex, false));
+    }
+
+    @Test
+    public void permanentFailuresAreNotRetried() {
+        DbException[] failures = {
+                new DbException(null, "invalid"),
+                new DbException.NotFound(null, "missing"),
+                new DbException.Conflict(null, "changed"),
+        };
+        for (DbException ex : failures) {
+            assertFalse(DbRetry.isTransient(ex));
+            assertFalse(DbRetry.isRetryable(ex, true));
+            assertFalse(DbRetry.isRetryable(ex, false));
+        }
+    }
+}
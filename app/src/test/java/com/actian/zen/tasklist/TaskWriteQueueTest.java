@@ -0,0 +1,151 @@
+/*
+ * Copyright 2017 Actian Corporation
+ */
+package com.actian.zen.tasklist;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TaskWriteQueueTest {
+    private File mDir;
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = File.createTempFile("queue", "");
+        assertTrue(mDir.delete() && mDir.mkdir());
+        mFile = new File(mDir, "tasklist.queue");
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files)
+                file.delete();
+        }
+        mDir.delete();
+    }
+
+    private static TaskRecord task(int id, String title, int version) {
+        TaskRecord task = new TaskRecord(id, title);
+        task.mVersion = version;
+        return task;
+    }
+
+    private static String titles(List<TaskRecord> tasks) {
+        StringBuilder result = new StringBuilder();
+        for (TaskRecord task : tasks)
+            result.append(task.get_id()).append(':').append(task.getTitle()).append(' ');
+        return result.toString().trim();
+    }
+
+    @Test
+    public void writesSurviveAReload() {
+        TaskWriteQueue queue = new TaskWriteQueue(mFile);
+        TaskRecord inserted = queue.queueInsert("New task");
+        assertEquals(-1, inserted.get_id());
+        queue.queueUpdate(task(5, "Old title", 7), "Renamed");
+        // Longer than writeUTF allows, and not ASCII.
+        char[] chars = new char[TaskTable.MAX_NOTES_SIZE / 2];
+        Arrays.fill(chars, 'é');
+        String notes = new String(chars);
+        queue.queueNotes(task(5, "Old title", 7), notes);
+        queue.queueDelete(6);
+
+        TaskWriteQueue loaded = new TaskWriteQueue(mFile);
+        assertEquals(4, loaded.size());
+        List<TaskRecord> table = Arrays.asList(task(6, "Gone", 1), task(5, "Old title", 7));
+        ArrayList<TaskRecord> shown = loaded.applyTo(table);
+        assertEquals("-1:New task 5:Renamed", titles(shown));
+        // Further renames are made on the version read.
+        assertEquals(7, shown.get(1).getVersion());
+        assertEquals(notes, loaded.queuedNotes(5));
+        assertNull(loaded.queuedNotes(6));
+        // Temporary ids carry on after the ones already used.
+        assertEquals(-2, loaded.queueInsert("Another").get_id());
+    }
+
+    @Test
+    public void lastQueuedNotesWin() {
+        TaskWriteQueue queue = new TaskWriteQueue();
+        queue.queueNotes(task(5, "Task", 1), "first");
+        queue.queueNotes(task(5, "Task", 1), "second");
+        assertEquals("second", queue.queuedNotes(5));
+    }
+
+    @Test
+    public void deletingAnUnsentInsertDropsIt() {
+        TaskWriteQueue queue = new TaskWriteQueue(mFile);
+        TaskRecord inserted = queue.queueInsert("New task");
+        queue.queueDelete(inserted.get_id());
+        assertTrue(queue.isEmpty());
+        assertTrue(new TaskWriteQueue(mFile).isEmpty());
+    }
+
+    @Test
+    public void deletingASentInsertCancelsIt() throws IOException {
+        // An insert that was sent after id 10, whose reply was lost.
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(mFile));
+        try {
+            out.writeInt(0x54575251);
+            out.writeInt(3);
+            out.writeInt(1);
+            out.writeByte(1);
+            out.writeInt(-1);
+            out.writeInt(10);
+            out.writeUTF("New task");
+            out.writeInt(0);
+        } finally {
+            out.close();
+        }
+        TaskWriteQueue queue = new TaskWriteQueue(mFile);
+        assertEquals("-1:New task", titles(queue.applyTo(new ArrayList<TaskRecord>())));
+
+        queue.queueDelete(-1);
+        // Kept, so the replay can remove the task if it got there.
+        assertEquals(1, queue.size());
+        assertEquals("", titles(queue.applyTo(new ArrayList<TaskRecord>())));
+
+        TaskWriteQueue loaded = new TaskWriteQueue(mFile);
+        assertEquals(1, loaded.size());
+        assertEquals("", titles(loaded.applyTo(new ArrayList<TaskRecord>())));
+    }
+
+    @Test
+    public void unreadableFileIsKept() throws IOException {
+        byte[] garbage = "not a write queue".getBytes("UTF-8");
+        FileOutputStream out = new FileOutputStream(mFile);
+        try {
+            out.write(garbage);
+        } finally {
+            out.close();
+        }
+        TaskWriteQueue queue = new TaskWriteQueue(mFile);
+        assertTrue(queue.isEmpty());
+        assertFalse(mFile.exists());
+        File[] bad = mDir.listFiles();
+        assertEquals(1, bad.length);
+        assertTrue(bad[0].getName().endsWith(".bad"));
+        assertEquals(garbage.length, bad[0].length());
+
+        // The queue carries on in a new file.
+        queue.queueInsert("New task");
+        assertEquals(1, new TaskWriteQueue(mFile).size());
+        assertEquals(garbage.length, bad[0].length());
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2017 Actian Corporation
+ */
+package com.actian.zen.tasklist;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TitleTrigramIndexTest {
+    private TitleTrigramIndex mIndex;
+
+    @Before
+    public void setUp() {
+        mIndex = new TitleTrigramIndex();
+        mIndex.add(new TaskRecord(1, "Buy milk"));
+        mIndex.add(new TaskRecord(2, "Call mom"));
+        mIndex.add(new TaskRecord(3, "Milkshake"));
+        mIndex.markComplete();
+    }
+
+    private static int[] ids(ArrayList<TaskRecord> tasks) {
+        int[] ids = new int[tasks.size()];
+        for (int i = 0; i < ids.length; i++)
+            ids[i] = tasks.get(i).get_id();
+        return ids;
+    }
+
+    private static void assertIds(ArrayList<TaskRecord> tasks, int... expected) {
+        assertNotNull(tasks);
+        assertEquals(Arrays.toString(expected), Arrays.toString(ids(tasks)));
+    }
+
+    @Test
+    public void searchIsNewestFirst() {
+        assertIds(mIndex.search("milk"), 3, 1);
+    }
+
+    @Test
+    public void titlesAreCaseFolded() {
+        mIndex.add(new TaskRecord(4, "MILK AGAIN"));
+        assertIds(mIndex.search("milk"), 4, 3, 1);
+    }
+
+    @Test
+    public void shortQueriesAreNotAnswered() {
+        assertNull(mIndex.search(""));
+        assertNull(mIndex.search("mi"));
+        assertNotNull(mIndex.search("mil"));
+    }
+
+    @Test
+    public void incompleteIndexIsNotUsed() {
+        TitleTrigramIndex index = new TitleTrigramIndex();
+        index.add(new TaskRecord(1, "Buy milk"));
+        assertNull(index.search("milk"));
+        index.markComplete();
+        assertIds(index.search("milk"), 1);
+        index.clear();
+        assertNull(index.search("milk"));
+    }
+
+    @Test
+    public void unknownTrigramFindsNothing() {
+        assertIds(mIndex.search("xyz"));
+    }
+
+    @Test
+    public void candidatesAreChecked() {
+        // Has the trigrams of "abcd" but not the substring.
+        mIndex.add(new TaskRecord(5, "abcxbcd"));
+        assertIds(mIndex.search("abcd"));
+        mIndex.add(new TaskRecord(6, "xabcdx"));
+        assertIds(mIndex.search("abcd"), 6);
+    }
+
+    @Test
+    public void repeatedTrigramsCountOnce() {
+        mIndex.add(new TaskRecord(7, "aaaaaa"));
+        assertIds(mIndex.search("aaaa"), 7);
+    }
+
+    @Test
+    public void removedTasksAreNotFound() {
+        mIndex.remove(1);
+        assertIds(mIndex.search("milk"), 3);
+        // Removing an unknown id is harmless.
+        mIndex.remove(42);
+        assertIds(mIndex.search("milk"), 3);
+    }
+
+    @Test
+    public void renameReplacesTheTitle() {
+        mIndex.add(new TaskRecord(2, "Buy more milk"));
+        assertIds(mIndex.search("mom"));
+        assertIds(mIndex.search("milk"), 3, 2, 1);
+        assertEquals("Buy more milk", mIndex.search("more").get(0).getTitle());
+    }
+
+    @Test
+    public void idsAddedOutOfOrderAreFound() {
+        TitleTrigramIndex index = new TitleTrigramIndex();
+        for (int id = 20; id > 0; id--)
+            index.add(new TaskRecord(id, "task " + id));
+        index.markComplete();
+        ArrayList<TaskRecord> found = index.search("task");
+        assertEquals(20, found.size());
+        for (int i = 1; i < found.size(); i++)
+            assertTrue(found.get(i - 1).get_id() > found.get(i).get_id());
+        index.remove(5);
+        assertEquals(19, index.search("task").size());
+    }
+}
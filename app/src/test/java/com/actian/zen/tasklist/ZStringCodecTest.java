@@ -0,0 +1,95 @@
+/*
+ * Copyright 2017 Actian Corporation
+ */
+package com.actian.zen.tasklist;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ZStringCodecTest {
+    private static final int OFFSET = 4;
+    private static final int FIELD = 8;
+
+    // Store str truncated to the field and read it back.
+    private static String roundTrip(String str) {
+        ByteBuffer rec = ByteBuffer.allocate(OFFSET + FIELD + 4);
+        ZStringCodec.putZStringTruncated(rec, OFFSET, FIELD, str);
+        return ZStringCodec.getZString(rec, OFFSET, FIELD);
+    }
+
+    @Test
+    public void asciiAndOtherTextRoundTrip() {
+        assertEquals("hello", roundTrip("hello"));
+        assertEquals("hé€", roundTrip("hé€"));
+        assertEquals("", roundTrip(""));
+        assertEquals("", roundTrip(null));
+    }
+
+    @Test
+    public void surrogatePairsAreOneCodePoint() {
+        String smile = "a😀b";
+        assertEquals(6, ZStringCodec.utf8Length(smile));
+        assertEquals(smile, roundTrip(smile));
+        ByteBuffer rec = ByteBuffer.allocate(FIELD);
+        ZStringCodec.putZString(rec, 0, FIELD, smile);
+        byte[] expected = { 'a', (byte) 0xF0, (byte) 0x9F, (byte) 0x98, (byte) 0x80, 'b', 0 };
+        for (int i = 0; i < expected.length; i++)
+            assertEquals(expected[i], rec.get(i));
+    }
+
+    @Test
+    public void loneSurrogatesBecomeQuestionMarks() {
+        assertEquals(3, ZStringCodec.utf8Length("a\ud800b"));
+        assertEquals("a?b", roundTrip("a\ud800b"));
+        assertEquals("?a", roundTrip("\ude00a"));
+        // A high surrogate at the end has no partner.
+        assertEquals("a?", roundTrip("a\ud83d"));
+        // Two high surrogates: only the second is paired.
+        assertEquals("?😀", roundTrip("\ud83d😀"));
+    }
+
+    @Test
+    public void truncationStopsAtAWholeCodePoint() {
+        // FIELD - 1 = 7 bytes for text.
+        assertEquals("abcdefg", roundTrip("abcdefgh"));
+        // 5 + 3 bytes: the euro sign does not fit.
+        assertEquals("abcde", roundTrip("abcde€"));
+        // 4 + 3 bytes fit exactly.
+        assertEquals("abcd€", roundTrip("abcd€"));
+        // 4 + 4 bytes: the pair is not split.
+        assertEquals("abcd", roundTrip("abcd😀"));
+        assertEquals("abc😀", roundTrip("abc😀"));
+    }
+
+    @Test
+    public void tooLongForTheFieldThrows() {
+        ByteBuffer rec = ByteBuffer.allocate(FIELD);
+        try {
+            ZStringCodec.putZString(rec, 0, FIELD, "abcdefgh");
+            fail();
+        } catch (RuntimeException ex) {
+            assertTrue(ex.getMessage().contains("8 >= 8"));
+        }
+        ZStringCodec.putZString(rec, 0, FIELD, "abcdefg");
+        assertEquals("abcdefg", ZStringCodec.getZString(rec, 0, FIELD));
+    }
+
+    @Test
+    public void fieldWithoutTerminatorIsReadToItsEnd() {
+        ByteBuffer rec = ByteBuffer.wrap("xxxxabcdefghyyyy".getBytes());
+        assertEquals("abcdefgh", ZStringCodec.getZString(rec, OFFSET, FIELD));
+        assertEquals(OFFSET + FIELD, rec.position());
+    }
+
+    @Test
+    public void readOnlyBuffersAreRead() {
+        ByteBuffer rec = ByteBuffer.allocate(OFFSET + FIELD);
+        ZStringCodec.putZString(rec, OFFSET, FIELD, "hé");
+        assertEquals("hé", ZStringCodec.getZString(rec.asReadOnlyBuffer(), OFFSET, FIELD));
+    }
+}